@@ -0,0 +1,70 @@
+package se.andolf.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import se.andolf.CPU;
+import se.andolf.Machine;
+import se.andolf.Profiler;
+import se.andolf.SplitMix;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Instructions per second for each opcode class, every program loops back to 0x200.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class CPUBenchmark {
+
+    private static final Map<String, String> PROGRAMS = Map.ofEntries(
+            Map.entry("jump", "1200"),
+            Map.entry("call", "2204 1200 00EE"),
+            Map.entry("nested", "2204 1200 2208 00EE 220C 00EE 00EE"),
+            Map.entry("skip", "3001 6000 4000 6000 5010 6000 9010 1200"),
+            Map.entry("const", "6005 7001 6105 7101 1200"),
+            Map.entry("alu", "6005 6103 8014 8015 8011 8012 8013 8016 8017 801E 1200"),
+            Map.entry("index", "A300 F01E A000 F029 1200"),
+            Map.entry("random", "C0FF C1FF C20F 1200"),
+            Map.entry("draw", "A050 D015 7008 1200"),
+            Map.entry("keys", "E09E 6000 E0A1 6000 1200"),
+            Map.entry("timer", "6010 F015 F107 F018 1200"),
+            Map.entry("bcd", "A400 60FF F033 1200"),
+            Map.entry("memory", "A400 FF55 FF65 1200"));
+
+    @Param({"jump", "call", "nested", "skip", "const", "alu", "index", "random", "draw", "keys", "timer", "bcd", "memory"})
+    public String opcodes;
+
+    // counting instructions per address, for the profiler and the opcode metrics
+    @Param({"false", "true"})
+    public boolean counted;
+
+    private CPU cpu;
+
+    @Setup
+    public void setup() {
+        final Machine machine = new Machine(Programs.of(PROGRAMS.get(opcodes)), new SplitMix(42));
+        cpu = machine.getCPU();
+        if (counted) {
+            cpu.setProfiler(new Profiler(machine.getMemory()));
+        }
+    }
+
+    @Benchmark
+    public void instruction() {
+        cpu.emulateCycle();
+    }
+}
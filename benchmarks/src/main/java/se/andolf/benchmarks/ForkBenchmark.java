@@ -0,0 +1,65 @@
+package se.andolf.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import se.andolf.Machine;
+import se.andolf.Memory;
+import se.andolf.RandomSource;
+import se.andolf.SaveState;
+import se.andolf.SplitMix;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of forking a machine a few seconds into a rom, compared with copying it through a save state.
+ * Run with {@code -prof gc} to see the bytes allocated per fork.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class ForkBenchmark {
+
+    @Param({"TETRIS"})
+    public String rom;
+
+    private Machine machine;
+    private RandomSource random;
+
+    @Setup
+    public void setup() {
+        random = new SplitMix(42);
+        machine = new Machine(Programs.rom(rom), random);
+        for (int frame = 0; frame < 300; frame++) {
+            machine.runFrame(Machine.DEFAULT_CYCLES_PER_FRAME);
+        }
+    }
+
+    @Benchmark
+    public Memory forkMemory() {
+        return machine.getMemory().fork();
+    }
+
+    @Benchmark
+    public Machine forkMachine() {
+        return machine.fork(random);
+    }
+
+    @Benchmark
+    public Machine copyThroughSaveState() {
+        final Machine copy = new Machine(new byte[0], random);
+        SaveState.restore(copy, SaveState.save(machine));
+        return copy;
+    }
+}
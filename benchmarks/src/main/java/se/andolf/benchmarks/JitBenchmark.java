@@ -0,0 +1,58 @@
+package se.andolf.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import se.andolf.Machine;
+import se.andolf.SplitMix;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Instructions per second of the interpreter, the interpreter with a decode cache and the basic block
+ * compiler on the bundled roms.
+ * The compiler finishes a frame at a block boundary, so it can run a few more instructions per frame.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class JitBenchmark {
+
+    private static final int CYCLES_PER_FRAME = 100;
+
+    @Param({"BRIX", "INVADERS", "PONG", "TETRIS", "BLINKY", "UFO"})
+    public String rom;
+
+    @Param({"interpreter", "decode-cache", "jit"})
+    public String mode;
+
+    private Machine machine;
+
+    @Setup
+    public void setup() {
+        machine = new Machine(Programs.rom(rom), new SplitMix(42));
+        if ("jit".equals(mode)) {
+            machine.enableJit();
+        } else if ("decode-cache".equals(mode)) {
+            machine.enableDecodeCache();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CYCLES_PER_FRAME)
+    public void instructions() {
+        machine.runFrame(CYCLES_PER_FRAME);
+    }
+}
@@ -0,0 +1,74 @@
+package se.andolf.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import se.andolf.Lockstep;
+import se.andolf.Machine;
+import se.andolf.SplitMix;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to run one frame of a rom on many instances, as separate machines and as lanes of one lockstep
+ * run. Both run the same instructions, lane n is seeded like machine n. The bundled roms draw random
+ * numbers early, so their lanes soon go separate ways.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class LockstepBenchmark {
+
+    private static final int CYCLES_PER_FRAME = 100;
+
+    // register and index opcodes without CXNN, so every lane stays on the same instruction
+    private static final String ALU = "6005 6103 7001 8014 8112 8013 A300 F11E 3000 1204 1204";
+
+    @Param({"ALU", "INVADERS", "TETRIS", "UFO"})
+    public String rom;
+
+    @Param({"64", "1024"})
+    public int instances;
+
+    @Param({"machines", "lockstep"})
+    public String mode;
+
+    private Machine[] machines;
+    private Lockstep lockstep;
+
+    @Setup
+    public void setup() {
+        final byte[] data = "ALU".equals(rom) ? Programs.of(ALU) : Programs.rom(rom);
+        if ("lockstep".equals(mode)) {
+            lockstep = new Lockstep(data, instances, 42);
+        } else {
+            machines = new Machine[instances];
+            for (int i = 0; i < instances; i++) {
+                machines[i] = new Machine(data, new SplitMix(42 + i));
+            }
+        }
+    }
+
+    @Benchmark
+    public int frame() {
+        if (lockstep != null) {
+            return lockstep.runFrame(CYCLES_PER_FRAME);
+        }
+        int executed = 0;
+        for (Machine machine : machines) {
+            executed += machine.runFrame(CYCLES_PER_FRAME);
+        }
+        return executed;
+    }
+}
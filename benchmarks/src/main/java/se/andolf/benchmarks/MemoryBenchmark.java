@@ -0,0 +1,41 @@
+package se.andolf.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import se.andolf.Memory;
+
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class MemoryBenchmark {
+
+    private Memory memory;
+    private int pc;
+
+    @Setup
+    public void setup() {
+        memory = new Memory();
+        memory.loadData(Programs.rom("BRIX"));
+        pc = Memory.PROGRAM_START;
+    }
+
+    @Benchmark
+    public int getOpcode() {
+        final int opcode = memory.getOpcode(pc);
+        pc = (pc + 2) & 0xFFF;
+        return opcode;
+    }
+}
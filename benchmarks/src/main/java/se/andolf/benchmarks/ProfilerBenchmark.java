@@ -0,0 +1,51 @@
+package se.andolf.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import se.andolf.Machine;
+import se.andolf.Profiler;
+import se.andolf.SplitMix;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time per frame with and without the profiler counting every instruction.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class ProfilerBenchmark {
+
+    @Param({"BLINKY", "BRIX", "INVADERS", "TETRIS", "UFO"})
+    public String rom;
+
+    @Param({"false", "true"})
+    public boolean profile;
+
+    private Machine machine;
+
+    @Setup
+    public void setup() {
+        machine = new Machine(Programs.rom(rom), new SplitMix(42));
+        if (profile) {
+            machine.getCPU().setProfiler(new Profiler(machine.getMemory()));
+        }
+    }
+
+    @Benchmark
+    public void frame() {
+        machine.runFrame(Machine.DEFAULT_CYCLES_PER_FRAME);
+    }
+}
@@ -0,0 +1,26 @@
+package se.andolf.benchmarks;
+
+import se.andolf.utils.Utils;
+
+final class Programs {
+
+    private Programs() {
+    }
+
+    // parses opcodes written as hex words, example: "6005 7001 1200"
+    static byte[] of(String opcodes) {
+        final String[] words = opcodes.trim().split("\\s+");
+        final byte[] data = new byte[words.length * 2];
+        for (int i = 0; i < words.length; i++) {
+            final int opcode = Integer.parseInt(words[i], 16);
+            data[i * 2] = (byte) (opcode >>> 8);
+            data[i * 2 + 1] = (byte) opcode;
+        }
+        return data;
+    }
+
+    static byte[] rom(String name) {
+        return Utils.load("/roms/" + name + ".ch8")
+                .orElseThrow(() -> new IllegalArgumentException("No such rom: " + name));
+    }
+}
@@ -0,0 +1,65 @@
+package se.andolf.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import se.andolf.Machine;
+import se.andolf.SplitMix;
+import se.andolf.Trace;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Whole rom runs of the bundled roms, one invocation is one frame of {@link #CYCLES_PER_FRAME} instructions.
+ * {@code frame} reports ns per frame and {@code instructions} reports instructions per second.
+ */
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class RomBenchmark {
+
+    private static final int CYCLES_PER_FRAME = 10;
+
+    @Param({"15PUZZLE", "BLINKY", "BLITZ", "BRIX", "CONNECT4", "GUESS", "HIDDEN", "INVADERS", "KALEID", "MAZE",
+            "MERLIN", "MISSILE", "PONG", "PONG2", "PUZZLE", "SYZYGY", "TANK", "TETRIS", "TICTAC", "UFO", "VBRIX",
+            "VERS", "WIPEOFF"})
+    public String rom;
+
+    @Param({"false", "true"})
+    public boolean trace;
+
+    private Machine machine;
+
+    @Setup
+    public void setup() {
+        machine = new Machine(Programs.rom(rom), new SplitMix(42));
+        if (trace) {
+            machine.getCPU().setTrace(new Trace(1024));
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public void frame() {
+        machine.runFrame(CYCLES_PER_FRAME);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @OperationsPerInvocation(CYCLES_PER_FRAME)
+    public void instructions() {
+        machine.runFrame(CYCLES_PER_FRAME);
+    }
+}
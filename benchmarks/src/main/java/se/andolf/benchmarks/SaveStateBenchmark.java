@@ -0,0 +1,67 @@
+package se.andolf.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import se.andolf.Machine;
+import se.andolf.SaveState;
+import se.andolf.SplitMix;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of saving and restoring a machine a few seconds into a rom, into a new array and into
+ * a reused buffer.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class SaveStateBenchmark {
+
+    @Param({"BRIX", "TETRIS"})
+    public String rom;
+
+    private Machine machine;
+    private byte[] state;
+    private ByteBuffer buffer;
+
+    @Setup
+    public void setup() {
+        machine = new Machine(Programs.rom(rom), new SplitMix(42));
+        for (int frame = 0; frame < 300; frame++) {
+            machine.runFrame(Machine.DEFAULT_CYCLES_PER_FRAME);
+        }
+        state = SaveState.save(machine);
+        buffer = ByteBuffer.allocate(state.length);
+    }
+
+    @Benchmark
+    public byte[] save() {
+        return SaveState.save(machine);
+    }
+
+    @Benchmark
+    public ByteBuffer saveIntoBuffer() {
+        buffer.clear();
+        SaveState.save(machine, buffer);
+        return buffer;
+    }
+
+    @Benchmark
+    public Machine restore() {
+        SaveState.restore(machine, state);
+        return machine;
+    }
+}
@@ -0,0 +1,64 @@
+package se.andolf.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import se.andolf.FrameBuffer;
+import se.andolf.Machine;
+import se.andolf.Screen;
+import se.andolf.SplitMix;
+
+import java.awt.Graphics;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Render time per frame where every frame draws one 5 row sprite, at different scale factors.
+ * Presents into an offscreen image so it runs headless.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = "-Djava.awt.headless=true")
+@State(Scope.Thread)
+public class ScreenBenchmark {
+
+    @Param({"5", "10", "20"})
+    public int scale;
+
+    private Machine machine;
+    private FrameBuffer frameBuffer;
+    private Screen screen;
+    private Graphics graphics;
+
+    @Setup
+    public void setup() {
+        machine = new Machine(Programs.of("A000 D015 7007 7103 1202"), new SplitMix(42));
+        frameBuffer = machine.getFrameBuffer();
+        screen = new Screen(frameBuffer, scale);
+        graphics = new BufferedImage(FrameBuffer.WIDTH * scale, FrameBuffer.HEIGHT * scale, BufferedImage.TYPE_INT_RGB).createGraphics();
+        machine.getCPU().emulateCycle();
+    }
+
+    @TearDown
+    public void tearDown() {
+        graphics.dispose();
+    }
+
+    @Benchmark
+    public void frame() {
+        machine.runFrame(4);
+        screen.update(frameBuffer.takeDirtyRows());
+        screen.present(graphics, FrameBuffer.WIDTH * scale, FrameBuffer.HEIGHT * scale);
+    }
+}
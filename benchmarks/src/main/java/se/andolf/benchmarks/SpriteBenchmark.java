@@ -0,0 +1,52 @@
+package se.andolf.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import se.andolf.CPU;
+import se.andolf.Machine;
+import se.andolf.SplitMix;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * DXYN sprite draws of different heights, moving across the screen so draws wrap around the edges.
+ * Every invocation runs one draw and the three instructions moving the sprite.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class SpriteBenchmark {
+
+    @Param({"1", "5", "15"})
+    public int height;
+
+    private CPU cpu;
+
+    @Setup
+    public void setup() {
+        final String program = String.format("A200 D01%X 7003 7105 1202", height);
+        cpu = new Machine(Programs.of(program), new SplitMix(42)).getCPU();
+        // skip the ANNN so every invocation is one draw, two adds and the jump back
+        cpu.emulateCycle();
+    }
+
+    @Benchmark
+    public void draw() {
+        cpu.emulateCycle();
+        cpu.emulateCycle();
+        cpu.emulateCycle();
+        cpu.emulateCycle();
+    }
+}
@@ -0,0 +1,290 @@
+package se.andolf;
+
+import se.andolf.utils.Utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Runs many independent machines without a display on a fork join pool, example:
+ * {@code java -cp chip8-emulator.jar se.andolf.Batch /roms/BRIX.ch8 /roms/PONG.ch8 --instances 1000 --frames 3600}
+ *
+ * <p>A machine runs a slice of frames per task and is then queued again behind the others, so a long
+ * running rom does not keep a worker to itself and every machine makes progress at the same pace.
+ */
+public class Batch {
+
+    public static final int DEFAULT_FRAMES_PER_SLICE = 60;
+
+    public enum HaltReason {
+        /** Ran all the requested frames. */
+        FRAME_LIMIT,
+        /** Reached a jump to itself. */
+        HALTED,
+        /** Reached an opcode that does not decode, which never moves the program counter. */
+        UNKNOWN_OPCODE,
+        /** Called with a full call stack or returned with an empty one, see {@link StackFault}. */
+        STACK_FAULT,
+        /** Threw anything else. */
+        FAULT
+    }
+
+    public static class Result {
+
+        private final int instance;
+        private final long frames;
+        private final long cycles;
+        private final int frameBufferHash;
+        private final HaltReason haltReason;
+        private final String fault;
+
+        Result(int instance, long frames, long cycles, int frameBufferHash, HaltReason haltReason, String fault) {
+            this.instance = instance;
+            this.frames = frames;
+            this.cycles = cycles;
+            this.frameBufferHash = frameBufferHash;
+            this.haltReason = haltReason;
+            this.fault = fault;
+        }
+
+        public int getInstance() {
+            return instance;
+        }
+
+        public long getFrames() {
+            return frames;
+        }
+
+        public long getCycles() {
+            return cycles;
+        }
+
+        public int getFrameBufferHash() {
+            return frameBufferHash;
+        }
+
+        public HaltReason getHaltReason() {
+            return haltReason;
+        }
+
+        /**
+         * The exception that stopped the machine when the halt reason is {@link HaltReason#STACK_FAULT} or
+         * {@link HaltReason#FAULT}, otherwise null.
+         */
+        public String getFault() {
+            return fault;
+        }
+    }
+
+    private final ForkJoinPool pool;
+    private final int cyclesPerFrame;
+    private final int framesPerSlice;
+    private boolean jit;
+    private boolean decodeCache;
+
+    public Batch(ForkJoinPool pool, int cyclesPerFrame, int framesPerSlice) {
+        this.pool = pool;
+        this.cyclesPerFrame = cyclesPerFrame;
+        this.framesPerSlice = framesPerSlice;
+    }
+
+    /**
+     * A pool that runs queued tasks in submission order, which is what makes the slices round robin.
+     */
+    public static ForkJoinPool newPool(int parallelism) {
+        return new ForkJoinPool(parallelism, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+    }
+
+    public void enableJit() {
+        jit = true;
+    }
+
+    public void enableDecodeCache() {
+        decodeCache = true;
+    }
+
+    /**
+     * Runs one machine per rom for up to frames frames each and waits for all of them to stop.
+     * Machine n draws its random numbers from {@code new SplitMix(seed + n)}, so a batch is repeatable.
+     *
+     * @return the results in the same order as the roms
+     */
+    public List<Result> run(List<byte[]> roms, long frames, long seed) throws InterruptedException {
+        final Result[] results = new Result[roms.size()];
+        final CountDownLatch done = new CountDownLatch(roms.size());
+
+        for (int i = 0; i < roms.size(); i++) {
+            final Machine machine = new Machine(roms.get(i), new SplitMix(seed + i));
+            if (jit) {
+                machine.enableJit();
+            }
+            if (decodeCache) {
+                machine.enableDecodeCache();
+            }
+            pool.execute(new Instance(i, machine, frames, results, done));
+        }
+
+        done.await();
+        return Arrays.asList(results);
+    }
+
+    private static HaltReason halted(Machine machine) {
+        final int pc = machine.getCPU().getPC();
+        final int opcode = machine.getMemory().getOpcode(pc);
+        if (opcode == (0x1000 | pc)) {
+            return HaltReason.HALTED;
+        }
+        if (CPU.isUnknown(opcode)) {
+            return HaltReason.UNKNOWN_OPCODE;
+        }
+        return null;
+    }
+
+    private class Instance implements Runnable {
+
+        private final int id;
+        private final Machine machine;
+        private final long frames;
+        private final Result[] results;
+        private final CountDownLatch done;
+
+        // only touched by the worker running the current slice, the pool queue publishes them to the next one
+        private long frame;
+        private long cycles;
+        private HaltReason haltReason;
+        private String fault;
+
+        private Instance(int id, Machine machine, long frames, Result[] results, CountDownLatch done) {
+            this.id = id;
+            this.machine = machine;
+            this.frames = frames;
+            this.results = results;
+            this.done = done;
+        }
+
+        @Override
+        public void run() {
+            final long end = Math.min(frame + framesPerSlice, frames);
+            try {
+                while (frame < end && haltReason == null) {
+                    cycles += machine.runFrame(cyclesPerFrame);
+                    frame++;
+                    haltReason = halted(machine);
+                }
+            } catch (StackFault e) {
+                haltReason = HaltReason.STACK_FAULT;
+                fault = e.getMessage();
+            } catch (RuntimeException e) {
+                haltReason = HaltReason.FAULT;
+                fault = e.toString();
+            }
+
+            if (haltReason == null && frame < frames) {
+                pool.execute(this);
+                return;
+            }
+
+            results[id] = new Result(id, frame, cycles, machine.getFrameBuffer().hash(),
+                    haltReason == null ? HaltReason.FRAME_LIMIT : haltReason, fault);
+            done.countDown();
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+
+        if(args.length == 0) {
+            System.out.println("Usage: <rom>... [--instances N] [--frames N] [--cycles-per-frame N] [--threads N] [--slice N] [--seed N] [--jit] [--decode-cache]");
+            System.exit(1);
+        }
+
+        final List<String> names = new ArrayList<>();
+        int instances = 1;
+        long frames = 600;
+        int cyclesPerFrame = Machine.DEFAULT_CYCLES_PER_FRAME;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int slice = DEFAULT_FRAMES_PER_SLICE;
+        long seed = 0;
+        boolean jit = false;
+        boolean decodeCache = false;
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--instances":
+                    instances = Integer.parseInt(args[++i]);
+                    break;
+                case "--frames":
+                    frames = Long.parseLong(args[++i]);
+                    break;
+                case "--cycles-per-frame":
+                    cyclesPerFrame = Integer.parseInt(args[++i]);
+                    break;
+                case "--threads":
+                    threads = Integer.parseInt(args[++i]);
+                    break;
+                case "--slice":
+                    slice = Integer.parseInt(args[++i]);
+                    break;
+                case "--seed":
+                    seed = Long.parseLong(args[++i]);
+                    break;
+                case "--jit":
+                    jit = true;
+                    break;
+                case "--decode-cache":
+                    decodeCache = true;
+                    break;
+                default:
+                    if (args[i].startsWith("--")) {
+                        System.out.println("Unknown argument: " + args[i]);
+                        System.exit(1);
+                    }
+                    names.add(args[i]);
+            }
+        }
+
+        final List<byte[]> roms = new ArrayList<>();
+        for (String name : names) {
+            final byte[] rom = Utils.load(name).orElse(null);
+            if (rom == null) {
+                System.exit(1);
+            }
+            for (int i = 0; i < instances; i++) {
+                roms.add(rom);
+            }
+        }
+
+        final ForkJoinPool pool = newPool(threads);
+        final Batch batch = new Batch(pool, cyclesPerFrame, slice);
+        if (jit) {
+            batch.enableJit();
+        }
+        if (decodeCache) {
+            batch.enableDecodeCache();
+        }
+
+        final long start = System.nanoTime();
+        final List<Result> results = batch.run(roms, frames, seed);
+        final long elapsed = System.nanoTime() - start;
+        pool.shutdown();
+
+        // identical outcomes are counted instead of printed once per instance
+        final Map<String, Integer> outcomes = new LinkedHashMap<>();
+        long cycles = 0;
+        for (Result result : results) {
+            cycles += result.getCycles();
+            final String outcome = String.format("%s: %s, frames: %d, cycles: %d, framebuffer: %08x%s",
+                    names.get(result.getInstance() / instances), result.getHaltReason(), result.getFrames(),
+                    result.getCycles(), result.getFrameBufferHash(), result.getFault() == null ? "" : ", " + result.getFault());
+            outcomes.merge(outcome, 1, Integer::sum);
+        }
+        outcomes.forEach((outcome, count) -> System.out.printf("%6d x %s%n", count, outcome));
+
+        System.out.printf("instances: %d, threads: %d, cycles: %d, time: %.3f s, cycles/s: %.0f%n",
+                results.size(), threads, cycles, elapsed / 1e9, cycles * 1e9 / Math.max(elapsed, 1));
+    }
+}
@@ -1,308 +1,602 @@
 package se.andolf;
 
-import se.andolf.utils.Utils;
-
-import java.util.Random;
-import java.util.Stack;
+import java.nio.ByteBuffer;
 
 public class CPU {
 
+    public static final int DEFAULT_STACK_DEPTH = 16;
+    // the depth is saved in a byte
+    public static final int MAX_STACK_DEPTH = 0xFF;
+    // pc, I, the timers and the random state come before the saved stack depth
+    static final int SAVED_DEPTH_OFFSET = 4 + 4 + 1 + 1 + 8;
+
     private final Memory memory;
     private final Register register;
-    private final Random random;
+    private final RandomSource random;
     private final Keyboard keyboard;
-    private final Screen screen;
-    private final Stack<Integer> stack;
+    private final FrameBuffer frameBuffer;
+    private final int[] stack;
+    private int sp;
+    private final byte[] sprite = new byte[15];
+    private Trace trace;
+    private InputLatency inputLatency;
+    private Profiler profiler;
+    private DecodeCache decodeCache;
 
     private boolean drawFlag;
+    private boolean idle;
 
     private int I;
     private int pc;
     private int delayTimer, soundTimer;
+    private long ticks;
+
+    public CPU(Memory memory, Register register, RandomSource random, Keyboard keyboard, FrameBuffer frameBuffer) {
+        this(memory, register, random, keyboard, frameBuffer, DEFAULT_STACK_DEPTH);
+    }
 
-    public CPU(Memory memory, Register register, Random random, Keyboard keyboard, Screen screen) {
+    /**
+     * @param stackDepth the number of return addresses the call stack holds, calling deeper is a {@link StackFault}
+     */
+    public CPU(Memory memory, Register register, RandomSource random, Keyboard keyboard, FrameBuffer frameBuffer, int stackDepth) {
+        if (stackDepth < 1 || stackDepth > MAX_STACK_DEPTH) {
+            throw new IllegalArgumentException("Stack depth must be 1 to " + MAX_STACK_DEPTH + ", was " + stackDepth);
+        }
         this.memory = memory;
         this.register = register;
         this.random = random;
         this.keyboard = keyboard;
-        this.screen = screen;
+        this.frameBuffer = frameBuffer;
 
-        stack = new Stack<>();
+        stack = new int[stackDepth];
 
         pc = 0x200;
         I = 0;
     }
 
-    public void emulateCycle() {
+    private static final Instruction UNKNOWN = CPU::unknown;
+    private static final Instruction[] INSTRUCTIONS = new Instruction[0x10000];
 
-        final int opcode = memory.getOpcode(pc);
-        System.out.println(Utils.getHex(opcode));
+    static {
+        for (int opcode = 0; opcode < INSTRUCTIONS.length; opcode++) {
+            INSTRUCTIONS[opcode] = decode(opcode);
+        }
+    }
 
+    private static Instruction decode(int opcode) {
+        switch (opcode & 0xF000) {
+            case 0x0000:
+                if (opcode == 0x00E0)
+                    return CPU::clearScreen;
+                if (opcode == 0x00EE)
+                    return CPU::returnFromSubroutine;
+                return UNKNOWN;
+            case 0x1000:
+                return CPU::jump;
+            case 0x2000:
+                return CPU::call;
+            case 0x3000:
+                return CPU::skipIfEqualsConstant;
+            case 0x4000:
+                return CPU::skipIfNotEqualsConstant;
+            case 0x5000:
+                return CPU::skipIfEqualsRegister;
+            case 0x6000:
+                return CPU::setConstant;
+            case 0x7000:
+                return CPU::addConstant;
+            case 0x8000:
+                switch (opcode & 0x000F) {
+                    case 0x0:
+                        return CPU::assign;
+                    case 0x1:
+                        return CPU::or;
+                    case 0x2:
+                        return CPU::and;
+                    case 0x3:
+                        return CPU::xor;
+                    case 0x4:
+                        return CPU::add;
+                    case 0x5:
+                        return CPU::subtract;
+                    case 0x6:
+                        return CPU::shiftRight;
+                    case 0x7:
+                        return CPU::subtractReversed;
+                    case 0xE:
+                        return CPU::shiftLeft;
+                    default:
+                        return UNKNOWN;
+                }
+            case 0x9000:
+                return (opcode & 0x000F) == 0 ? CPU::skipIfNotEqualsRegister : UNKNOWN;
+            case 0xA000:
+                return CPU::setIndex;
+            case 0xB000:
+                return CPU::jumpWithOffset;
+            case 0xC000:
+                return CPU::random;
+            case 0xD000:
+                return CPU::draw;
+            case 0xE000:
+                switch (opcode & 0x00FF) {
+                    case 0x9E:
+                        return CPU::skipIfPressed;
+                    case 0xA1:
+                        return CPU::skipIfNotPressed;
+                    default:
+                        return UNKNOWN;
+                }
+            case 0xF000:
+                switch (opcode & 0x00FF) {
+                    case 0x07:
+                        return CPU::getDelay;
+                    case 0x0A:
+                        return CPU::awaitKey;
+                    case 0x15:
+                        return CPU::setDelay;
+                    case 0x18:
+                        return CPU::setSound;
+                    case 0x1E:
+                        return CPU::addIndex;
+                    case 0x29:
+                        return CPU::setFont;
+                    case 0x33:
+                        return CPU::storeBCD;
+                    case 0x55:
+                        return CPU::storeRegisters;
+                    case 0x65:
+                        return CPU::loadRegisters;
+                    default:
+                        return UNKNOWN;
+                }
+            default:
+                return UNKNOWN;
+        }
+    }
 
-        int x = (opcode & 0x0F00) >>> 8;
-        int y = (opcode & 0x00F0) >>> 4;
+    public void emulateCycle() {
+
+        if (decodeCache != null) {
+            final DecodeCache.Entry decoded = decodeCache.get(pc);
+            if (trace != null) {
+                trace.record(pc, decoded.opcode, I, register);
+            }
+            if (profiler != null) {
+                profiler.record(pc);
+            }
+            decoded.instruction.execute(this, decoded.opcode);
+            return;
+        }
 
-        switch(opcode) {
-            case 0x00E0:
-                screen.clear();
-                drawFlag = true;
-                pc += 2;
-                return;
+        final int opcode = memory.getOpcode(pc);
 
-            case 0x00EE:
-                pc = stack.pop();
-                pc += 2;
-                break;
+        if (trace != null) {
+            trace.record(pc, opcode, I, register);
+        }
+        if (profiler != null) {
+            profiler.record(pc);
         }
 
-        switch (opcode & 0xF000) {
+        execute(opcode);
+    }
 
-            case 0x1000:
-                pc = opcode & 0x0FFF;
-                break;
+    static Instruction instruction(int opcode) {
+        return INSTRUCTIONS[opcode];
+    }
 
-            case 0x2000:
-                stack.push(pc);
-                pc = opcode & 0x0FFF;
-                break;
+    static boolean isUnknown(int opcode) {
+        return INSTRUCTIONS[opcode] == UNKNOWN;
+    }
 
-            case 0x3000:
-                if(register.get(x) == (opcode & 0x00FF)) {
-                    pc += 4;
-                } else {
-                    pc += 2;
-                }
-                break;
+    void execute(int opcode) {
+        INSTRUCTIONS[opcode].execute(this, opcode);
+    }
 
-            case 0x4000:
-                if(register.get((opcode & 0x0F00) >>> 8) != (opcode & 0x00FF)) {
-                    pc += 4;
-                } else {
-                    pc += 2;
-                }
-                break;
+    private void unknown(int opcode) {
+        // Unknown opcodes leave the program counter untouched
+    }
 
-            case 0x5000:
-                if(register.get((opcode & 0x0F00) >>> 8) == register.get((opcode & 0x00F0) >>> 4)) {
-                    pc += 4;
-                } else {
-                    pc += 2;
-                }
-                break;
+    // 00E0
+    private void clearScreen(int opcode) {
+        frameBuffer.clear();
+        drawFlag = true;
+        pc += 2;
+    }
 
-            case 0x6000:
-                register.set((opcode & 0x0F00) >>> 8, (opcode & 0x00FF));
-                pc += 2;
-                break;
+    // 00EE
+    private void returnFromSubroutine(int opcode) {
+        if (sp == 0) {
+            throw new StackFault(StackFault.Kind.UNDERFLOW, pc);
+        }
+        pc = stack[--sp] + 2;
+    }
 
-            case 0x7000:
-                register.apply(x, xv -> {
-                    int result = xv + (opcode & 0x00FF);
-                    if(result >= 256) {
-                        return (result - 256);
-                    } else {
-                        return result;
-                    }
-                });
-                pc += 2;
-                break;
+    // 1NNN
+    private void jump(int opcode) {
+        final int target = opcode & 0x0FFF;
+        if (target == pc || (target == pc - 4 && isDelayLoop(target))) {
+            idle = true;
         }
+        pc = target;
+    }
 
+    // FX07, 3XNN or 4XNN on the same VX, 1NNN back to the FX07. Reaching the jump means the skip did
+    // not happen, and it will not until the delay timer changes.
+    private boolean isDelayLoop(int start) {
+        final int load = memory.getOpcode(start);
+        final int skip = memory.getOpcode(start + 2);
+        if ((load & 0xF0FF) != 0xF007 || (skip & 0x0F00) != (load & 0x0F00)) {
+            return false;
+        }
+        return (skip & 0xF000) == 0x3000 || (skip & 0xF000) == 0x4000;
+    }
 
-        switch (opcode & 0xF00F) {
+    // 2NNN
+    private void call(int opcode) {
+        if (sp == stack.length) {
+            throw new StackFault(StackFault.Kind.OVERFLOW, pc);
+        }
+        stack[sp++] = pc;
+        pc = opcode & 0x0FFF;
+    }
 
-            case 0x8000:
-                register.set(x, register.get(y));
-                pc += 2;
-                break;
-
-            case 0x8001:
-                register.apply(x, vx -> vx | register.get(y));
-                pc += 2;
-                break;
-
-            case 0x8002:
-                register.apply(x, vx -> vx & register.get(y));
-                pc += 2;
-                break;
-
-            case 0x8003:
-                register.apply(x, vx -> vx ^ register.get(y));
-                pc += 2;
-                break;
-
-            case 0x8004:
-                register.apply(x, operand -> {
-                    int sum = operand + register.get(y);
-                    register.set(0xF, sum > 0xFF ? 1 : 0);
-                    return (sum & 0xFF);
-                });
-                pc += 2;
-                break;
-
-            case 0x8005:
-                register.apply(x, vx -> {
-                    register.set(0xF, register.get(y) > vx ? 0 : 1);
-                    return (vx - register.get(y)) & 0xFF;
-                });
-                pc += 2;
-                break;
-
-            case 0x8006:
-                register.set(0xF, (register.get(x) & 0x1));
-                register.apply(x, vx -> vx >>> 1);
-                pc += 2;
-                break;
-
-            case 0x8007:
-                register.set(0xF, register.get(y) < register.get(x) ? 0 : 1);
-                register.apply(x, vx -> (register.get(y) - vx) & 0xFF);
-                pc += 2;
-                break;
-
-            case 0x800E:
-                register.set(0xF, (register.get(x) & 0x80) > 0 ? 1 : 0);
-                register.apply(x, vx -> (vx << 1) & 0xFF);
-                pc += 2;
-                break;
+    // 3XNN
+    private void skipIfEqualsConstant(int opcode) {
+        if(register.get((opcode & 0x0F00) >>> 8) == (opcode & 0x00FF)) {
+            pc += 4;
+        } else {
+            pc += 2;
+        }
+    }
 
-            case 0x9000:
-                if(register.get(x) != register.get(y))
-                    pc += 4;
-                else
-                    pc += 2;
-                break;
+    // 4XNN
+    private void skipIfNotEqualsConstant(int opcode) {
+        if(register.get((opcode & 0x0F00) >>> 8) != (opcode & 0x00FF)) {
+            pc += 4;
+        } else {
+            pc += 2;
+        }
+    }
 
+    // 5XY0
+    private void skipIfEqualsRegister(int opcode) {
+        if(register.get((opcode & 0x0F00) >>> 8) == register.get((opcode & 0x00F0) >>> 4)) {
+            pc += 4;
+        } else {
+            pc += 2;
         }
+    }
 
-        switch (opcode & 0xF000) {
-            case 0xA000:
-                I = opcode & 0x0FFF;
-                pc += 2;
-                break;
+    // 6XNN
+    private void setConstant(int opcode) {
+        register.set((opcode & 0x0F00) >>> 8, (opcode & 0x00FF));
+        pc += 2;
+    }
 
-            case 0xB000:
-                pc = (opcode & 0x0FFF) + register.get(0);
-                break;
+    // 7XNN
+    private void addConstant(int opcode) {
+        final int x = (opcode & 0x0F00) >>> 8;
+        register.set(x, register.get(x) + (opcode & 0x00FF));
+        pc += 2;
+    }
 
-            case 0xC000:
-                register.set(x, random.nextInt(256) & (opcode & 0x00FF));
-                pc += 2;
-                break;
+    // 8XY0
+    private void assign(int opcode) {
+        register.set((opcode & 0x0F00) >>> 8, register.get((opcode & 0x00F0) >>> 4));
+        pc += 2;
+    }
 
-            case 0xD000:
+    // 8XY1
+    private void or(int opcode) {
+        final int x = (opcode & 0x0F00) >>> 8;
+        register.set(x, register.get(x) | register.get((opcode & 0x00F0) >>> 4));
+        pc += 2;
+    }
+
+    // 8XY2
+    private void and(int opcode) {
+        final int x = (opcode & 0x0F00) >>> 8;
+        register.set(x, register.get(x) & register.get((opcode & 0x00F0) >>> 4));
+        pc += 2;
+    }
+
+    // 8XY3
+    private void xor(int opcode) {
+        final int x = (opcode & 0x0F00) >>> 8;
+        register.set(x, register.get(x) ^ register.get((opcode & 0x00F0) >>> 4));
+        pc += 2;
+    }
+
+    // 8XY4
+    private void add(int opcode) {
+        final int x = (opcode & 0x0F00) >>> 8;
+        final int sum = register.get(x) + register.get((opcode & 0x00F0) >>> 4);
+        register.set(0xF, sum > 0xFF ? 1 : 0);
+        register.set(x, sum);
+        pc += 2;
+    }
+
+    // 8XY5
+    private void subtract(int opcode) {
+        final int x = (opcode & 0x0F00) >>> 8;
+        final int y = (opcode & 0x00F0) >>> 4;
+        final int vx = register.get(x);
+        register.set(0xF, register.get(y) > vx ? 0 : 1);
+        register.set(x, vx - register.get(y));
+        pc += 2;
+    }
 
-                final int height = opcode & 0x000F;
+    // 8XY6
+    private void shiftRight(int opcode) {
+        final int x = (opcode & 0x0F00) >>> 8;
+        register.set(0xF, (register.get(x) & 0x1));
+        register.set(x, register.get(x) >>> 1);
+        pc += 2;
+    }
 
-                register.set(0xF, 0);
+    // 8XY7
+    private void subtractReversed(int opcode) {
+        final int x = (opcode & 0x0F00) >>> 8;
+        final int y = (opcode & 0x00F0) >>> 4;
+        register.set(0xF, register.get(y) < register.get(x) ? 0 : 1);
+        register.set(x, register.get(y) - register.get(x));
+        pc += 2;
+    }
 
-                for (int yLine = 0; yLine < height; yLine++) {
+    // 8XYE
+    private void shiftLeft(int opcode) {
+        final int x = (opcode & 0x0F00) >>> 8;
+        register.set(0xF, (register.get(x) & 0x80) > 0 ? 1 : 0);
+        register.set(x, register.get(x) << 1);
+        pc += 2;
+    }
 
-                    int pixelValue = memory.getByte(I + yLine);
+    // 9XY0
+    private void skipIfNotEqualsRegister(int opcode) {
+        if(register.get((opcode & 0x0F00) >>> 8) != register.get((opcode & 0x00F0) >>> 4))
+            pc += 4;
+        else
+            pc += 2;
+    }
 
-                    for (int xLine = 0; xLine < 8; xLine++) {
+    // ANNN
+    private void setIndex(int opcode) {
+        I = opcode & 0x0FFF;
+        pc += 2;
+    }
 
-                        if (Utils.getBitValue(pixelValue, xLine) != 0) {
+    // BNNN
+    private void jumpWithOffset(int opcode) {
+        pc = (opcode & 0x0FFF) + register.get(0);
+    }
 
-                            int xCoord = (register.get(x) + xLine);
-                            int yCoord = (register.get(y) + yLine) ;
+    // CXNN
+    private void random(int opcode) {
+        register.set((opcode & 0x0F00) >>> 8, random.nextByte() & (opcode & 0x00FF));
+        pc += 2;
+    }
 
-                            if(xCoord >= screen.getWidth() / Emulator.SCALE )
-                                xCoord %= screen.getWidth() / Emulator.SCALE;
+    // DXYN
+    private void draw(int opcode) {
+        final int height = opcode & 0x000F;
 
-                            if(yCoord >= screen.getHeight() / Emulator.SCALE )
-                                yCoord %= screen.getHeight() / Emulator.SCALE;
+        register.set(0xF, 0);
 
-                            if (screen.getPixel(xCoord, yCoord) == 1)
-                                register.set(0xF, 1);
+        final int xCoord = register.get((opcode & 0x0F00) >>> 8);
+        final int yCoord = register.get((opcode & 0x00F0) >>> 4);
+        memory.read(I, sprite, 0, height);
 
-                            screen.setPixel(xCoord, yCoord);
-                        }
-                    }
-                }
-                drawFlag = true;
-                pc += 2;
-                break;
+        boolean collision = false;
+        for (int yLine = 0; yLine < height; yLine++) {
+            collision |= frameBuffer.drawRow(xCoord, yCoord + yLine, sprite[yLine]);
         }
 
-        switch (opcode & 0xF0FF) {
+        if (collision) {
+            register.set(0xF, 1);
+        }
+        drawFlag = true;
+        pc += 2;
+    }
 
-            case 0xE09E:
-                if(keyboard.isPressed(register.get(x))) {
-                    pc += 4;
-                } else {
-                    pc += 2;
-                }
-                break;
+    // EX9E
+    private void skipIfPressed(int opcode) {
+        if(keyboard.isPressed(register.get((opcode & 0x0F00) >>> 8))) {
+            keyRead(1 << register.get((opcode & 0x0F00) >>> 8));
+            pc += 4;
+        } else {
+            pc += 2;
+        }
+    }
 
-            case 0xE0A1:
-                if(!keyboard.isPressed(register.get(x))) {
-                    pc += 4;
-                } else {
-                    pc += 2;
-                }
-                break;
-
-            case 0xF00A:
-                for (int i = 0; i < keyboard.getKeys().length; i++) {
-                    if(keyboard.isPressed(i)){
-                        register.set(x, i);
-                        pc += 2;
-                    }
-                }
-                break;
+    // EXA1
+    private void skipIfNotPressed(int opcode) {
+        if(!keyboard.isPressed(register.get((opcode & 0x0F00) >>> 8))) {
+            pc += 4;
+        } else {
+            keyRead(1 << register.get((opcode & 0x0F00) >>> 8));
+            pc += 2;
+        }
+    }
 
-            case 0xF007:
-                register.set(x, this.delayTimer);
-                pc += 2;
-                break;
+    // FX07
+    private void getDelay(int opcode) {
+        register.set((opcode & 0x0F00) >>> 8, this.delayTimer);
+        pc += 2;
+    }
 
-            case 0xF015:
-                this.delayTimer = register.get(x);
-                pc += 2;
-                break;
+    // FX0A
+    private void awaitKey(int opcode) {
+        final int keys = keyboard.getMask();
+        if (keys == 0) {
+            idle = true;
+            return;
+        }
+        keyRead(keys);
+        // the highest held key is stored, and every held key moves the program counter
+        register.set((opcode & 0x0F00) >>> 8, 31 - Integer.numberOfLeadingZeros(keys));
+        pc += 2 * Integer.bitCount(keys);
+    }
 
-            case 0xF018:
-                this.soundTimer = register.get(x);
-                pc += 2;
-                break;
+    private void keyRead(int keys) {
+        if (inputLatency != null && inputLatency.isWaiting()) {
+            inputLatency.onKeyRead(keys);
+        }
+    }
 
-            case 0xF01E:
-                this.I += register.get(x);
-                pc += 2;
-                break;
+    /**
+     * True when the next instruction is FX0A, which only continues once a key is held.
+     */
+    public boolean isAwaitingKey() {
+        return (memory.getOpcode(pc) & 0xF0FF) == 0xF00A;
+    }
 
-            case 0xF029:
-                this.I = register.get(x) * 5;
-                pc += 2;
-                break;
+    // FX15
+    private void setDelay(int opcode) {
+        this.delayTimer = register.get((opcode & 0x0F00) >>> 8);
+        pc += 2;
+    }
+
+    // FX18
+    private void setSound(int opcode) {
+        this.soundTimer = register.get((opcode & 0x0F00) >>> 8);
+        pc += 2;
+    }
 
-            case 0xF033:
+    // FX1E
+    private void addIndex(int opcode) {
+        this.I += register.get((opcode & 0x0F00) >>> 8);
+        pc += 2;
+    }
 
-                memory.setByte(I, register.get(x) / 100);
-                memory.setByte(I + 1, (register.get(x) % 100) / 10);
-                memory.setByte(I + 2, (register.get(x) % 100) % 10);
+    // FX29
+    private void setFont(int opcode) {
+        this.I = register.get((opcode & 0x0F00) >>> 8) * 5;
+        pc += 2;
+    }
 
-                pc += 2;
-                return;
+    // FX33
+    private void storeBCD(int opcode) {
+        final int x = (opcode & 0x0F00) >>> 8;
 
-            case 0xF055:
-                for (int j = 0; j <= x; j++) {
-                    memory.setByte(I + j, register.get(j));
-                }
+        memory.setByte(I, register.get(x) / 100);
+        memory.setByte(I + 1, (register.get(x) % 100) / 10);
+        memory.setByte(I + 2, (register.get(x) % 100) % 10);
 
-                pc += 2;
-                return;
+        pc += 2;
+    }
 
-            case 0xF065:
-                for (int j = 0; j <= x; j++) {
-                    register.set(j, memory.getByte(I + j) & 0xFF);
-                }
-                pc += 2;
-                break;
+    // FX55
+    private void storeRegisters(int opcode) {
+        final int x = (opcode & 0x0F00) >>> 8;
+        register.store(memory, I, x + 1);
+        pc += 2;
+    }
+
+    // FX65
+    private void loadRegisters(int opcode) {
+        final int x = (opcode & 0x0F00) >>> 8;
+        register.load(memory, I, x + 1);
+        pc += 2;
+    }
+
+    // called at 60 Hz
+    public void tickTimers() {
+        ticks++;
+        if (delayTimer > 0) {
+            delayTimer--;
+        }
+        if (soundTimer > 0) {
+            soundTimer--;
         }
     }
 
+    // takes over the pc, I, timers and return addresses of another CPU, used when a machine is forked
+    void copyState(CPU source) {
+        pc = source.pc;
+        I = source.I;
+        delayTimer = source.delayTimer;
+        soundTimer = source.soundTimer;
+        sp = source.sp;
+        System.arraycopy(source.stack, 0, stack, 0, sp);
+        drawFlag = true;
+    }
+
+    // Rewind compares the state field by field every frame instead of saving it
+    long getRandomState() {
+        return random.getState();
+    }
+
+    int getReturnAddress(int index) {
+        return stack[index];
+    }
+
+    void setState(int pc, int I, int delayTimer, int soundTimer, long randomState, int[] stack, int sp) {
+        this.pc = pc;
+        this.I = I;
+        this.delayTimer = delayTimer;
+        this.soundTimer = soundTimer;
+        random.setState(randomState);
+        System.arraycopy(stack, 0, this.stack, 0, sp);
+        this.sp = sp;
+        drawFlag = true;
+        idle = false;
+    }
+
+    // pc, I, the timers, the random state and the return addresses, see SaveState for the layout
+    void save(ByteBuffer out) {
+        out.putInt(pc);
+        out.putInt(I);
+        out.put((byte) delayTimer);
+        out.put((byte) soundTimer);
+        out.putLong(random.getState());
+        out.put((byte) sp);
+        for (int i = 0; i < sp; i++) {
+            out.putChar((char) stack[i]);
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException if the saved stack is deeper than this one, before anything is restored
+     */
+    void restore(ByteBuffer in) {
+        final int depth = in.get(in.position() + SAVED_DEPTH_OFFSET) & 0xFF;
+        if (depth > stack.length) {
+            throw new IllegalArgumentException("A stack of " + depth + " return addresses does not fit in " + stack.length);
+        }
+        pc = in.getInt();
+        I = in.getInt();
+        delayTimer = in.get() & 0xFF;
+        soundTimer = in.get() & 0xFF;
+        random.setState(in.getLong());
+        in.get();
+        for (int i = 0; i < depth; i++) {
+            stack[i] = in.getChar();
+        }
+        sp = depth;
+        drawFlag = true;
+        idle = false;
+    }
+
+    int savedSize() {
+        return savedSize(sp);
+    }
+
+    static int savedSize(int depth) {
+        return SAVED_DEPTH_OFFSET + 1 + depth * 2;
+    }
+
+    public int getStackDepth() {
+        return stack.length;
+    }
+
+    /**
+     * The number of return addresses on the call stack.
+     */
+    public int getSP() {
+        return sp;
+    }
+
     public int getDelayTimer() {
         return delayTimer;
     }
@@ -323,6 +617,18 @@ public class CPU {
         drawFlag = value;
     }
 
+    /**
+     * True when the last instructions were a busy wait that can not make progress until the next
+     * timer tick or key press: a jump to itself, a delay timer polling loop or FX0A without a key.
+     */
+    public boolean isIdle() {
+        return idle;
+    }
+
+    public void setIdle(boolean value) {
+        idle = value;
+    }
+
     public int getPC() {
         return pc;
     }
@@ -330,4 +636,46 @@ public class CPU {
     public int getI() {
         return I;
     }
+
+    public DecodeCache getDecodeCache() {
+        return decodeCache;
+    }
+
+    public void setDecodeCache(DecodeCache decodeCache) {
+        this.decodeCache = decodeCache;
+    }
+
+    public Trace getTrace() {
+        return trace;
+    }
+
+    public void setTrace(Trace trace) {
+        this.trace = trace;
+    }
+
+    public Profiler getProfiler() {
+        return profiler;
+    }
+
+    public void setProfiler(Profiler profiler) {
+        this.profiler = profiler;
+    }
+
+    /**
+     * The number of times the timers have been ticked.
+     */
+    public long getTicks() {
+        return ticks;
+    }
+
+    public InputLatency getInputLatency() {
+        return inputLatency;
+    }
+
+    /**
+     * Reports key reads to inputLatency, null turns it off.
+     */
+    public void setInputLatency(InputLatency inputLatency) {
+        this.inputLatency = inputLatency;
+    }
 }
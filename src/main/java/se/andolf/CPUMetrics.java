@@ -0,0 +1,65 @@
+package se.andolf;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Instruction counts of a CPU for JMX. The instruction count and rate come from the number of
+ * instructions every frame executed, which costs the interpreter loop nothing. Counts per opcode class
+ * are only there when the CPU has a {@link Profiler}, which counts per address and works out the
+ * classes when asked. {@link #publish(int)} copies them out once a second, so the interpreter loop
+ * never writes to memory shared with another thread.
+ */
+public class CPUMetrics implements CPUMetricsMXBean {
+
+    // working out the opcode classes walks all of memory, so it is not done every frame
+    private static final int OPCODE_PUBLISH_FRAMES = 60;
+
+    private final CPU cpu;
+    private final AtomicLongArray published = new AtomicLongArray(OpcodeClass.count());
+    private final Rate rate = new Rate();
+    private volatile long instructions;
+    private int frames;
+
+    public CPUMetrics(CPU cpu) {
+        this.cpu = cpu;
+    }
+
+    /**
+     * Called by the emulation thread after a frame that executed instructions.
+     */
+    public void publish(int executed) {
+        instructions += executed;
+        rate.add(executed, System.nanoTime());
+        final Profiler profiler = cpu.getProfiler();
+        if (profiler != null && frames++ % OPCODE_PUBLISH_FRAMES == 0) {
+            final long[] counts = profiler.getClassCounts();
+            for (int i = 0; i < counts.length; i++) {
+                published.lazySet(i, counts[i]);
+            }
+        }
+    }
+
+    @Override
+    public long getInstructions() {
+        return instructions;
+    }
+
+    @Override
+    public double getInstructionsPerSecond() {
+        return rate.get();
+    }
+
+    @Override
+    public Map<String, Long> getOpcodeCounts() {
+        final Map<String, Long> opcodeCounts = new LinkedHashMap<>();
+        for (int i = 0; i < published.length(); i++) {
+            final long count = published.get(i);
+            if (count != 0) {
+                opcodeCounts.put(OpcodeClass.get(i).getPattern(), count);
+            }
+        }
+        return opcodeCounts;
+    }
+}
@@ -0,0 +1,16 @@
+package se.andolf;
+
+import java.util.Map;
+
+public interface CPUMetricsMXBean {
+
+    long getInstructions();
+
+    double getInstructionsPerSecond();
+
+    /**
+     * Executed instructions per opcode pattern, for example 8XY4, empty unless the CPU has a profiler.
+     * Blocks run by the compiler are not counted.
+     */
+    Map<String, Long> getOpcodeCounts();
+}
@@ -0,0 +1,83 @@
+package se.andolf;
+
+import java.util.Arrays;
+
+/**
+ * Decoded instructions for every address, filled the first time an address is executed.
+ * Entries are dropped when memory they were decoded from is written to, so self-modifying
+ * roms see their new code.
+ */
+public class DecodeCache implements MemoryListener {
+
+    private static final int ADDRESS_MASK = Memory.SIZE - 1;
+
+    static final class Entry {
+        final Instruction instruction;
+        final int opcode;
+
+        private Entry(Instruction instruction, int opcode) {
+            this.instruction = instruction;
+            this.opcode = opcode;
+        }
+    }
+
+    private final Memory memory;
+    private final Entry[] entries = new Entry[Memory.SIZE];
+
+    private long hits;
+    private long misses;
+    private long invalidations;
+
+    public DecodeCache(Memory memory) {
+        this.memory = memory;
+        memory.addListener(this);
+    }
+
+    Entry get(int pc) {
+        final int address = pc & ADDRESS_MASK;
+        Entry entry = entries[address];
+        if (entry != null) {
+            hits++;
+            return entry;
+        }
+
+        misses++;
+        final int opcode = memory.getOpcode(address);
+        entry = new Entry(CPU.instruction(opcode), opcode);
+        entries[address] = entry;
+        return entry;
+    }
+
+    @Override
+    public void onWrite(int address, int length) {
+        // an opcode starting the byte before the write is changed as well
+        for (int i = -1; i < length; i++) {
+            final int index = (address + i) & ADDRESS_MASK;
+            if (entries[index] != null) {
+                entries[index] = null;
+                invalidations++;
+            }
+        }
+    }
+
+    public void clear() {
+        Arrays.fill(entries, null);
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    public long getInvalidations() {
+        return invalidations;
+    }
+
+    public double getHitRate() {
+        final long lookups = hits + misses;
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+}
@@ -1,23 +1,55 @@
 package se.andolf;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
 import javax.swing.*;
-import java.awt.*;
 import java.awt.event.KeyEvent;
 import java.awt.event.KeyListener;
-import java.util.Random;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 
 public class Emulator implements Runnable, KeyListener {
 
-    private static final int WIDTH = 64;
-    private static final int HEIGHT = 32;
-
+    // initial window scale, the window can be resized freely
     public static final int SCALE = 10;
+    private static final String EMULATOR_MBEAN = "se.andolf:type=Emulator";
+    private static final String CPU_MBEAN = "se.andolf:type=CPU";
+    private static final int PROFILE_HOT_SPOTS = 20;
+    private final Machine machine;
     private final CPU cpu;
+    private final FrameScheduler scheduler;
+    private final int cyclesPerFrame;
 
     private Thread thread;
-    private boolean isRunning;
+    private volatile boolean isRunning;
+    private volatile boolean dumpTrace;
+    private volatile boolean saveRequested;
+    private volatile boolean restoreRequested;
+    private byte[] savedState;
+    private volatile boolean rewinding;
+    private final Rewind rewind;
+    private final Movie movie;
+    private final String movieFile;
+    // set when the rom faulted, the machine stays stopped until a state is restored or rewound to
+    private StackFault fault;
 
     private final Keyboard keyboard;
+    // changed by key events, copied to the machine at the start of every frame so a frame sees one set of keys
+    private final Keyboard hostKeys = new Keyboard();
+    private final KeyEvents keyEvents = new KeyEvents();
+    private final InputLatency inputLatency;
+    private final String latencyFile;
+    private final boolean metricsEnabled;
+    private final Profiler profiler;
+    private final String profileFile;
+    private EmulatorMetrics metrics;
+    private CPUMetrics cpuMetrics;
 
     public final JFrame frame;
     private final Screen screen;
@@ -25,20 +57,56 @@ public class Emulator implements Runnable, KeyListener {
 
     public Emulator(byte[] gameData) {
 
-        this.keyboard = new Keyboard();
+        final long seed = Long.getLong("chip8.seed", System.nanoTime());
+        this.machine = new Machine(gameData, new SplitMix(seed));
+        this.scheduler = new FrameScheduler();
+        this.cyclesPerFrame = Integer.getInteger("chip8.cyclesPerFrame", Machine.DEFAULT_CYCLES_PER_FRAME);
+
+        // compiled blocks never reach emulateCycle, so profiling and tracing run on the interpreter
+        final boolean profiling = System.getProperty("chip8.profile") != null;
+        final boolean tracing = Integer.getInteger("chip8.trace", 0) > 0;
+        final boolean jit = Boolean.getBoolean("chip8.jit") && !profiling && !tracing;
+        if (Boolean.getBoolean("chip8.jit") && !jit) {
+            System.out.println("Compiled blocks are not " + (profiling ? "profiled" : "traced") + ", running without -Dchip8.jit");
+        }
+        if (jit) {
+            machine.enableJit();
+        }
+        if (Boolean.getBoolean("chip8.decodeCache")) {
+            machine.enableDecodeCache();
+        }
+
+        this.keyboard = machine.getKeyboard();
+        this.cpu = machine.getCPU();
 
-        final Memory memory = new Memory();
-        final Register register = new Register();
-        final Random random = new Random();
+        final int traceCapacity = Integer.getInteger("chip8.trace", 0);
+        if (traceCapacity > 0) {
+            cpu.setTrace(new Trace(traceCapacity));
+        }
+
+        metricsEnabled = !"false".equals(System.getProperty("chip8.metrics"));
+
+        // the opcode metrics share the profiler, counting costs every instruction so both are opt in
+        profileFile = System.getProperty("chip8.profile");
+        final boolean countOpcodes = profileFile != null || Boolean.getBoolean("chip8.metrics.opcodes");
+        profiler = countOpcodes ? new Profiler(machine.getMemory()) : null;
+        cpu.setProfiler(profiler);
 
-        memory.loadData(gameData);
+        latencyFile = System.getProperty("chip8.latency");
+        inputLatency = latencyFile != null ? new InputLatency() : null;
+        cpu.setInputLatency(inputLatency);
 
+        // recording costs about as much as the frame itself, so it is off unless a size is given
+        final int rewindBudget = Integer.getInteger("chip8.rewind", 0) * 1024;
+        rewind = rewindBudget > 0 ? new Rewind(machine, rewindBudget) : null;
 
-        screen = new Screen(WIDTH, HEIGHT, SCALE);
-        screen.setPreferredSize(new Dimension(WIDTH * SCALE, HEIGHT * SCALE));
+        movieFile = System.getProperty("chip8.record");
+        movie = movieFile != null ? new Movie(gameData, seed, cyclesPerFrame, jit, Movie.DEFAULT_CHECKPOINT_INTERVAL) : null;
+
+        screen = new Screen(machine.getFrameBuffer(), SCALE);
 
         frame = new JFrame();
-        frame.setResizable(false);
+        frame.setResizable(true);
         frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
         frame.setTitle("Chip-8 Emulator");
         frame.add(screen);
@@ -47,54 +115,207 @@ public class Emulator implements Runnable, KeyListener {
         frame.setVisible(true);
         frame.setAlwaysOnTop(true);
         frame.addKeyListener(this);
-
-        this.cpu = new CPU(memory, register, random, keyboard, screen);
+        frame.addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosing(WindowEvent e) {
+                stop();
+            }
+        });
     }
 
     public synchronized void start() {
+        if (metricsEnabled) {
+            metrics = new EmulatorMetrics(System.nanoTime(), cpu.getTicks());
+            cpuMetrics = new CPUMetrics(cpu);
+            register(metrics, EMULATOR_MBEAN);
+            register(cpuMetrics, CPU_MBEAN);
+        }
         isRunning = true;
         thread = new Thread(this, "Display");
         thread.start();
     }
 
     public synchronized void stop() {
+        // nothing ran and nothing was registered if start was never called, or stop was already called
+        if (thread == null) {
+            return;
+        }
         isRunning = false;
         try {
             thread.join();
         } catch (InterruptedException e) {
             e.printStackTrace();
         }
+        thread = null;
+        System.out.println(scheduler.report());
+        if (metrics != null) {
+            unregister(EMULATOR_MBEAN);
+            unregister(CPU_MBEAN);
+        }
+
+        if (profileFile != null) {
+            profiler.report(System.out, PROFILE_HOT_SPOTS);
+            try (OutputStream out = Files.newOutputStream(Paths.get(profileFile))) {
+                profiler.writeHeatMap(out);
+            } catch (IOException e) {
+                System.out.println("Could not write heat map: " + e.getMessage());
+            }
+        }
+
+        if (inputLatency != null) {
+            System.out.println(inputLatency.report());
+            try (PrintStream out = new PrintStream(Files.newOutputStream(Paths.get(latencyFile)))) {
+                inputLatency.export(out);
+            } catch (IOException e) {
+                System.out.println("Could not write input latency: " + e.getMessage());
+            }
+        }
+
+        if (movie != null) {
+            try (OutputStream out = Files.newOutputStream(Paths.get(movieFile))) {
+                movie.write(out);
+                System.out.println("Recorded " + movie.getFrames() + " frames to " + movieFile);
+            } catch (IOException e) {
+                System.out.println("Could not write movie: " + e.getMessage());
+            }
+        }
     }
 
     @Override
     public void run() {
+        scheduler.start();
         while (isRunning) {
-            update();
+            final int executed = update();
+            final boolean drawFlag = cpu.getDrawFlag();
             render();
+            if (metrics != null) {
+                cpuMetrics.publish(executed);
+                metrics.onFrame(System.nanoTime(), cpu.getTicks(), drawFlag);
+            }
+            scheduler.awaitNextFrame();
+        }
+    }
+
+    private static void register(Object mbean, String name) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(mbean, new ObjectName(name));
+        } catch (JMException e) {
+            System.out.println("Could not register " + name + ": " + e.getMessage());
+        }
+    }
+
+    private static void unregister(String name) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(name));
+        } catch (JMException e) {
+            System.out.println("Could not unregister " + name + ": " + e.getMessage());
         }
     }
 
     private void render() {
 
-        if(cpu.getDrawFlag()) {
-            screen.render();
-            cpu.setDrawFlag(false);
+        if (dumpTrace) {
+            cpu.getTrace().dump(System.out);
+            dumpTrace = false;
         }
 
+        if(cpu.getDrawFlag() || screen.isRepaintRequested()) {
+            final long start = System.nanoTime();
+            if (screen.render()) {
+                final long end = System.nanoTime();
+                if (metrics != null) {
+                    metrics.onRender(end - start);
+                }
+                if (inputLatency != null) {
+                    inputLatency.onPresented(end);
+                }
+            }
+            cpu.setDrawFlag(false);
+        }
+    }
 
-        if (cpu.getDelayTimer() > 0) {
-            cpu.setDelayTimer(cpu.getDelayTimer()-1);
+    // returns the number of instructions executed
+    private int update() {
+        // states are taken between frames on this thread, never while the machine is running
+        if (saveRequested) {
+            savedState = SaveState.save(machine);
+            saveRequested = false;
+        }
+        // a recording can only go forwards, so restoring and rewinding are off while recording
+        if (restoreRequested) {
+            if (savedState != null && movie == null) {
+                SaveState.restore(machine, savedState);
+                clearFault();
+            }
+            restoreRequested = false;
+        }
+        // holding backspace plays the recorded frames backwards, one per frame
+        if (rewinding && rewind != null && movie == null) {
+            if (rewind.stepBack()) {
+                clearFault();
+            }
+            discardKeyEdges();
+            return 0;
+        }
+        if (fault != null) {
+            discardKeyEdges();
+            return 0;
         }
 
+        // edges from before the frame are already in the mask
+        for (KeyEvents.Edge edge = keyEvents.poll(); edge != null; edge = keyEvents.poll()) {
+            if (inputLatency != null) {
+                inputLatency.onEdge(edge);
+            }
+        }
+        final int keys = hostKeys.getMask();
+        keyboard.setMask(keys);
+        int executed;
         try {
-            Thread.sleep(1L, 10000);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+            executed = machine.run(cyclesPerFrame);
+            // a rom waiting in FX0A continues as soon as a key goes down instead of at the next frame,
+            // which a recording can not replay since it only has the keys at the start of every frame
+            KeyEvents.Edge edge;
+            while (movie == null && executed < cyclesPerFrame && cpu.isAwaitingKey()
+                    && (edge = keyEvents.await(scheduler.getDeadline())) != null) {
+                if (inputLatency != null) {
+                    inputLatency.onEdge(edge);
+                }
+                keyboard.setMask(hostKeys.getMask());
+                executed += machine.run(cyclesPerFrame - executed);
+            }
+            cpu.tickTimers();
+        } catch (StackFault e) {
+            fault = e;
+            System.out.println("Stopped: " + e.getMessage());
+            if (cpu.getTrace() != null) {
+                cpu.getTrace().dump(System.out);
+            }
+            SwingUtilities.invokeLater(() -> frame.setTitle("Chip-8 Emulator - " + e.getMessage()));
+            return 0;
+        }
+        if (rewind != null) {
+            rewind.record();
+        }
+        if (movie != null) {
+            movie.record(keys, machine.getFrameBuffer());
+        }
+        return executed;
+    }
+
+    // presses while the machine is not running are never read, timing them would count the pause
+    private void discardKeyEdges() {
+        keyEvents.clear();
+        if (inputLatency != null) {
+            inputLatency.discardPending();
         }
     }
 
-    private void update() {
-        cpu.emulateCycle();
+    private void clearFault() {
+        if (fault != null) {
+            fault = null;
+            SwingUtilities.invokeLater(() -> frame.setTitle("Chip-8 Emulator"));
+        }
     }
 
     @Override
@@ -104,11 +325,27 @@ public class Emulator implements Runnable, KeyListener {
 
     @Override
     public void keyPressed(KeyEvent e) {
-        keyboard.onKeyPressed(e.getKeyCode());
+        if (e.getKeyCode() == KeyEvent.VK_F12 && cpu.getTrace() != null) {
+            dumpTrace = true;
+        } else if (e.getKeyCode() == KeyEvent.VK_F5) {
+            saveRequested = true;
+        } else if (e.getKeyCode() == KeyEvent.VK_F9) {
+            restoreRequested = true;
+        } else if (e.getKeyCode() == KeyEvent.VK_BACK_SPACE) {
+            rewinding = true;
+        }
+        if (hostKeys.onKeyPressed(e.getKeyCode())) {
+            keyEvents.add(Keyboard.key(e.getKeyCode()), true);
+        }
     }
 
     @Override
     public void keyReleased(KeyEvent e) {
-        keyboard.onKeyReleased(e.getKeyCode());
+        if (e.getKeyCode() == KeyEvent.VK_BACK_SPACE) {
+            rewinding = false;
+        }
+        if (hostKeys.onKeyReleased(e.getKeyCode())) {
+            keyEvents.add(Keyboard.key(e.getKeyCode()), false);
+        }
     }
 }
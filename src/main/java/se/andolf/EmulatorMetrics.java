@@ -0,0 +1,96 @@
+package se.andolf;
+
+/**
+ * Frame and render timing of the emulator for JMX. Every field is written by the emulation thread only,
+ * once per frame, and read by the JMX thread.
+ */
+public class EmulatorMetrics implements EmulatorMetricsMXBean {
+
+    private static final long TICK_NANOS = 1_000_000_000L / FrameScheduler.FRAME_RATE;
+
+    private final Rate frameRate = new Rate();
+    private final long start;
+    private final long startTicks;
+
+    // time between frames that did not tick the timers, rewinding or stopped on a fault
+    private long pausedNanos;
+    private long lastFrame;
+    private long lastTicks;
+
+    private volatile long frames;
+    private volatile long drawFrames;
+    private volatile long renders;
+    private volatile long renderNanos;
+    private volatile long maxRenderNanos;
+    private volatile long timerDriftNanos;
+
+    public EmulatorMetrics(long start, long startTicks) {
+        this.start = start;
+        this.startTicks = startTicks;
+        this.lastFrame = start;
+        this.lastTicks = startTicks;
+    }
+
+    /**
+     * Called after every frame with the number of timer ticks so far. A frame that ran the machine
+     * ticks the timers once, frames that did not are left out of the timer drift.
+     */
+    public void onFrame(long now, long ticks, boolean drawFlag) {
+        frames++;
+        if (drawFlag) {
+            drawFrames++;
+        }
+        frameRate.add(1, now);
+        if (ticks == lastTicks) {
+            pausedNanos += now - lastFrame;
+        }
+        lastFrame = now;
+        lastTicks = ticks;
+        timerDriftNanos = now - start - pausedNanos - (ticks - startTicks) * TICK_NANOS;
+    }
+
+    public void onRender(long nanos) {
+        renders++;
+        renderNanos += nanos;
+        if (nanos > maxRenderNanos) {
+            maxRenderNanos = nanos;
+        }
+    }
+
+    @Override
+    public long getFrames() {
+        return frames;
+    }
+
+    @Override
+    public double getFramesPerSecond() {
+        return frameRate.get();
+    }
+
+    @Override
+    public long getRenders() {
+        return renders;
+    }
+
+    @Override
+    public double getMeanRenderMillis() {
+        final long count = renders;
+        return count == 0 ? 0 : renderNanos / (count * 1e6);
+    }
+
+    @Override
+    public double getMaxRenderMillis() {
+        return maxRenderNanos / 1e6;
+    }
+
+    @Override
+    public double getTimerDriftMillis() {
+        return timerDriftNanos / 1e6;
+    }
+
+    @Override
+    public double getDrawFlagRatio() {
+        final long count = frames;
+        return count == 0 ? 0 : (double) drawFrames / count;
+    }
+}
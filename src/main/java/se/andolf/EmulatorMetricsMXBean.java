@@ -0,0 +1,25 @@
+package se.andolf;
+
+public interface EmulatorMetricsMXBean {
+
+    long getFrames();
+
+    double getFramesPerSecond();
+
+    long getRenders();
+
+    double getMeanRenderMillis();
+
+    double getMaxRenderMillis();
+
+    /**
+     * How far the 60 Hz timers are behind the wall clock since the start, negative when ahead. Time spent
+     * rewinding or stopped on a fault is not counted.
+     */
+    double getTimerDriftMillis();
+
+    /**
+     * The share of frames that set the draw flag and had to be rendered.
+     */
+    double getDrawFlagRatio();
+}
@@ -0,0 +1,113 @@
+package se.andolf;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * 64x32 monochrome display stored as one long per row, the most significant bit is x = 0.
+ */
+public class FrameBuffer {
+
+    public static final int WIDTH = 64;
+    public static final int HEIGHT = 32;
+    public static final int ALL_ROWS = -1;
+
+    private final long[] rows = new long[HEIGHT];
+    private int dirtyRows;
+    // the same, kept apart for Rewind so it does not take rows the screen has not presented yet
+    private int changedRows;
+
+    public void clear() {
+        for (int y = 0; y < HEIGHT; y++) {
+            if (rows[y] != 0) {
+                rows[y] = 0;
+                dirtyRows |= 1 << y;
+                changedRows |= 1 << y;
+            }
+        }
+    }
+
+    /**
+     * XORs an 8 pixel wide sprite row onto the display at (xCoord, yCoord), wrapping around the edges.
+     *
+     * @return true if any lit pixel was turned off
+     */
+    public boolean drawRow(int xCoord, int yCoord, int bits) {
+        final long sprite = Long.rotateRight((bits & 0xFFL) << 56, xCoord);
+        final int y = yCoord & (HEIGHT - 1);
+        final boolean collision = (rows[y] & sprite) != 0;
+        rows[y] ^= sprite;
+        if (sprite != 0) {
+            dirtyRows |= 1 << y;
+            changedRows |= 1 << y;
+        }
+        return collision;
+    }
+
+    /**
+     * Returns a mask of the rows changed since the last call, bit y is set if row y changed.
+     */
+    public int takeDirtyRows() {
+        final int dirty = dirtyRows;
+        dirtyRows = 0;
+        return dirty;
+    }
+
+    /**
+     * Like {@link #takeDirtyRows()}, for keeping history instead of presenting.
+     */
+    int takeChangedRows() {
+        final int changed = changedRows;
+        changedRows = 0;
+        return changed;
+    }
+
+    public int getPixel(int xCoord, int yCoord) {
+        return (int) (rows[yCoord] >>> (WIDTH - 1 - xCoord)) & 1;
+    }
+
+    public long getRow(int yCoord) {
+        return rows[yCoord];
+    }
+
+    void setRow(int yCoord, long row) {
+        rows[yCoord] = row;
+        dirtyRows |= 1 << yCoord;
+        changedRows |= 1 << yCoord;
+    }
+
+    public int getWidth() {
+        return WIDTH;
+    }
+
+    public int getHeight() {
+        return HEIGHT;
+    }
+
+    public int hash() {
+        return Arrays.hashCode(rows);
+    }
+
+    public FrameBuffer copy() {
+        final FrameBuffer copy = new FrameBuffer();
+        System.arraycopy(rows, 0, copy.rows, 0, HEIGHT);
+        copy.dirtyRows = ALL_ROWS;
+        copy.changedRows = ALL_ROWS;
+        return copy;
+    }
+
+    void save(ByteBuffer out) {
+        for (long row : rows) {
+            out.putLong(row);
+        }
+    }
+
+    // every row is marked dirty so the whole screen is presented again
+    void restore(ByteBuffer in) {
+        for (int y = 0; y < HEIGHT; y++) {
+            rows[y] = in.getLong();
+        }
+        dirtyRows = ALL_ROWS;
+        changedRows = ALL_ROWS;
+    }
+}
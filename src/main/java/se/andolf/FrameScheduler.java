@@ -0,0 +1,76 @@
+package se.andolf;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Paces the emulation to a fixed frame rate. Deadlines are absolute, so a frame that wakes up late is
+ * made up for by the next one instead of pushing every following frame back. If the emulator falls
+ * more than {@link #MAX_FRAMES_BEHIND} frames behind, for example after the host was suspended, the
+ * schedule is reset instead of racing to catch up.
+ */
+public class FrameScheduler {
+
+    public static final int FRAME_RATE = 60;
+
+    private static final long FRAME_NANOS = 1_000_000_000L / FRAME_RATE;
+    private static final int MAX_FRAMES_BEHIND = 5;
+
+    private long deadline;
+
+    private long frames;
+    private long resyncs;
+    private long totalJitter;
+    private long maxJitter;
+
+    public void start() {
+        deadline = System.nanoTime() + FRAME_NANOS;
+    }
+
+    public void awaitNextFrame() {
+        long now = System.nanoTime();
+        while (now < deadline) {
+            LockSupport.parkNanos(deadline - now);
+            now = System.nanoTime();
+        }
+
+        final long jitter = now - deadline;
+        frames++;
+        totalJitter += jitter;
+        maxJitter = Math.max(maxJitter, jitter);
+
+        if (jitter > MAX_FRAMES_BEHIND * FRAME_NANOS) {
+            resyncs++;
+            deadline = now + FRAME_NANOS;
+        } else {
+            deadline += FRAME_NANOS;
+        }
+    }
+
+    /**
+     * The {@link System#nanoTime()} the current frame ends at.
+     */
+    public long getDeadline() {
+        return deadline;
+    }
+
+    public long getFrames() {
+        return frames;
+    }
+
+    public long getResyncs() {
+        return resyncs;
+    }
+
+    public double getMeanJitterMillis() {
+        return frames == 0 ? 0 : totalJitter / (frames * 1e6);
+    }
+
+    public double getMaxJitterMillis() {
+        return maxJitter / 1e6;
+    }
+
+    public String report() {
+        return String.format("frames: %d, mean jitter: %.3f ms, max jitter: %.3f ms, resyncs: %d",
+                frames, getMeanJitterMillis(), getMaxJitterMillis(), resyncs);
+    }
+}
@@ -0,0 +1,223 @@
+package se.andolf;
+
+import se.andolf.utils.Utils;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ * Runs a rom without a display as fast as the host allows, example:
+ * {@code java -cp chip8-emulator.jar se.andolf.Headless /roms/BRIX.ch8 --frames 3600}
+ */
+public class Headless {
+
+    private static final int DEFAULT_FRAMES = 600;
+    private static final int PROFILE_HOT_SPOTS = 20;
+
+    public static void main(String[] args) {
+
+        if(args.length == 0) {
+            System.out.println("Usage: <rom> [--cycles N | --frames N] [--cycles-per-frame N] [--keys frame:+key,frame:-key] [--trace N] [--jit] [--decode-cache] [--load-state file] [--save-state file] [--seed N] [--record file] [--replay file] [--profile file.png]");
+            System.exit(1);
+        }
+
+        long cycles = -1;
+        long frames = DEFAULT_FRAMES;
+        int cyclesPerFrame = Machine.DEFAULT_CYCLES_PER_FRAME;
+        KeyScript keyScript = KeyScript.empty();
+        int traceCapacity = 0;
+        boolean jit = false;
+        boolean decodeCache = false;
+        String loadState = null;
+        String saveState = null;
+        long seed = System.nanoTime();
+        String record = null;
+        String replay = null;
+        String profile = null;
+
+        for (int i = 1; i < args.length; i++) {
+            switch (args[i]) {
+                case "--cycles":
+                    cycles = Long.parseLong(args[++i]);
+                    break;
+                case "--frames":
+                    frames = Long.parseLong(args[++i]);
+                    break;
+                case "--cycles-per-frame":
+                    cyclesPerFrame = Integer.parseInt(args[++i]);
+                    break;
+                case "--keys":
+                    keyScript = KeyScript.parse(args[++i]);
+                    break;
+                case "--trace":
+                    traceCapacity = Integer.parseInt(args[++i]);
+                    break;
+                case "--jit":
+                    jit = true;
+                    break;
+                case "--decode-cache":
+                    decodeCache = true;
+                    break;
+                case "--load-state":
+                    loadState = args[++i];
+                    break;
+                case "--save-state":
+                    saveState = args[++i];
+                    break;
+                case "--seed":
+                    seed = Long.parseLong(args[++i]);
+                    break;
+                case "--record":
+                    record = args[++i];
+                    break;
+                case "--replay":
+                    replay = args[++i];
+                    break;
+                case "--profile":
+                    profile = args[++i];
+                    break;
+                default:
+                    System.out.println("Unknown argument: " + args[i]);
+                    System.exit(1);
+            }
+        }
+
+        if (record != null && loadState != null) {
+            System.out.println("A recording has to start from the beginning of the rom, --record can not be used with --load-state");
+            System.exit(1);
+        }
+
+        if (profile != null && jit) {
+            System.out.println("Compiled blocks are not profiled, --profile can not be used with --jit");
+            System.exit(1);
+        }
+
+        if (traceCapacity > 0 && jit) {
+            System.out.println("Compiled blocks are not traced, --trace can not be used with --jit");
+            System.exit(1);
+        }
+
+        if (cycles >= 0) {
+            frames = (cycles + cyclesPerFrame - 1) / cyclesPerFrame;
+        }
+
+        final long totalFrames = frames;
+        final int perFrame = cyclesPerFrame;
+        final KeyScript script = keyScript;
+        final Trace trace = traceCapacity > 0 ? new Trace(traceCapacity) : null;
+        final boolean compile = jit;
+        final boolean decode = decodeCache;
+        final String load = loadState;
+        final String save = saveState;
+        final long randomSeed = seed;
+        final String recordTo = record;
+        final String replayFrom = replay;
+        final String profileTo = profile;
+        Utils.load(args[0]).ifPresentOrElse(bytes -> {
+            if (replayFrom != null) {
+                replay(bytes, replayFrom);
+                return;
+            }
+            final Machine machine = new Machine(bytes, new SplitMix(randomSeed));
+            final Movie movie = recordTo != null ? new Movie(bytes, randomSeed, perFrame, compile, Movie.DEFAULT_CHECKPOINT_INTERVAL) : null;
+            if (compile) {
+                machine.enableJit();
+            }
+            if (decode) {
+                machine.enableDecodeCache();
+            }
+            try {
+                if (load != null) {
+                    SaveState.restore(machine, Files.readAllBytes(Paths.get(load)));
+                }
+                final Profiler profiler = profileTo != null ? new Profiler(machine.getMemory()) : null;
+                machine.getCPU().setProfiler(profiler);
+                run(machine, totalFrames, perFrame, script, trace, movie);
+                if (profiler != null) {
+                    profiler.report(System.out, PROFILE_HOT_SPOTS);
+                    try (OutputStream out = Files.newOutputStream(Paths.get(profileTo))) {
+                        profiler.writeHeatMap(out);
+                    }
+                }
+                if (save != null) {
+                    Files.write(Paths.get(save), SaveState.save(machine));
+                }
+                if (movie != null) {
+                    try (OutputStream out = Files.newOutputStream(Paths.get(recordTo))) {
+                        movie.write(out);
+                    }
+                }
+            } catch (IOException e) {
+                System.out.println("Could not access file: " + e.getMessage());
+                System.exit(1);
+            }
+        }, () -> System.exit(1));
+    }
+
+    private static void replay(byte[] rom, String file) {
+        final Movie movie;
+        try (InputStream in = Files.newInputStream(Paths.get(file))) {
+            movie = Movie.read(new BufferedInputStream(in));
+        } catch (IOException e) {
+            System.out.println("Could not read movie: " + e.getMessage());
+            System.exit(1);
+            return;
+        }
+
+        final Machine machine = movie.newMachine(rom);
+        final long start = System.nanoTime();
+        final int failed = movie.replay(machine);
+        final long elapsed = System.nanoTime() - start;
+
+        System.out.printf("frames: %d, checkpoints: %d, time: %.3f s, frames/s: %.0f%n",
+                movie.getFrames(), movie.getCheckpoints(), elapsed / 1e9, movie.getFrames() * 1e9 / Math.max(elapsed, 1));
+        if (failed != 0) {
+            System.out.println("framebuffer differs from the recording after frame " + failed);
+            System.exit(1);
+        }
+        System.out.println("all checkpoints match");
+    }
+
+    private static void run(Machine machine, long frames, int cyclesPerFrame, KeyScript keyScript, Trace trace, Movie movie) {
+        machine.getCPU().setTrace(trace);
+
+        final long start = System.nanoTime();
+
+        long cycles = 0;
+        int frame = 0;
+        StackFault fault = null;
+        try {
+            for (; frame < frames; frame++) {
+                keyScript.apply(frame, machine.getKeyboard());
+                cycles += machine.runFrame(cyclesPerFrame);
+                if (movie != null) {
+                    movie.record(machine.getKeyboard().getMask(), machine.getFrameBuffer());
+                }
+            }
+        } catch (StackFault e) {
+            fault = e;
+        }
+
+        final long elapsed = System.nanoTime() - start;
+
+        if (fault != null) {
+            System.out.println("stopped in frame " + frame + ": " + fault.getMessage());
+        }
+        System.out.printf("frames: %d, cycles: %d, time: %.3f s, cycles/s: %.0f, framebuffer: %08x%n",
+                frame, cycles, elapsed / 1e9, cycles * 1e9 / Math.max(elapsed, 1), machine.getFrameBuffer().hash());
+
+        final DecodeCache decodeCache = machine.getCPU().getDecodeCache();
+        if (decodeCache != null) {
+            System.out.printf("decode cache hit rate: %.4f, misses: %d, invalidations: %d%n",
+                    decodeCache.getHitRate(), decodeCache.getMisses(), decodeCache.getInvalidations());
+        }
+
+        if (trace != null) {
+            trace.dump(System.out);
+        }
+    }
+}
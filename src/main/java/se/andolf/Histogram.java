@@ -0,0 +1,149 @@
+package se.andolf;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+
+/**
+ * Counts of non negative long values in log linear buckets, in the way of HdrHistogram: values below
+ * 2^precision have a bucket each, above that every power of two is split into 2^(precision - 1) equal
+ * buckets. A value is off by less than 1 / 2^(precision - 1) of itself, with the default precision of 7
+ * that is below 1.6%. Recording is an array increment and never allocates.
+ */
+public class Histogram {
+
+    public static final int DEFAULT_PRECISION = 7;
+
+    private final int precision;
+    private final int half;
+    private final long[] counts;
+
+    private long total;
+    private long min = Long.MAX_VALUE;
+    private long max;
+    private double sum;
+
+    public Histogram() {
+        this(DEFAULT_PRECISION);
+    }
+
+    public Histogram(int precision) {
+        if (precision < 2 || precision > 16) {
+            throw new IllegalArgumentException("Precision must be 2 to 16 bits, was " + precision);
+        }
+        this.precision = precision;
+        this.half = 1 << (precision - 1);
+        // the shift goes up to 63 - precision for the largest long
+        this.counts = new long[(64 - precision + 2) * half];
+    }
+
+    private int index(long value) {
+        if (value < half << 1) {
+            return (int) value;
+        }
+        final int shift = 63 - Long.numberOfLeadingZeros(value) - (precision - 1);
+        return (shift << (precision - 1)) + (int) (value >>> shift);
+    }
+
+    private long highestEquivalent(int index) {
+        if (index < half << 1) {
+            return index;
+        }
+        final int shift = index / half - 1;
+        final long top = index - (long) shift * half;
+        return ((top + 1) << shift) - 1;
+    }
+
+    /**
+     * @throws IllegalArgumentException if value is negative
+     */
+    public void record(long value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("Can not record a negative value: " + value);
+        }
+        counts[index(value)]++;
+        total++;
+        sum += value;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+
+    public void reset() {
+        Arrays.fill(counts, 0);
+        total = 0;
+        sum = 0;
+        min = Long.MAX_VALUE;
+        max = 0;
+    }
+
+    public long getCount() {
+        return total;
+    }
+
+    public long getMin() {
+        return total == 0 ? 0 : min;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    public double getMean() {
+        return total == 0 ? 0 : sum / total;
+    }
+
+    /**
+     * The largest value that is within the precision of the value below which percentile percent of
+     * the recorded values fall, never more than the largest value recorded.
+     */
+    public long getValueAtPercentile(double percentile) {
+        if (total == 0) {
+            return 0;
+        }
+        final long target = Math.max(1, (long) Math.ceil(Math.min(percentile, 100) / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= target) {
+                return Math.min(highestEquivalent(i), max);
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Writes the distribution in the percentile format of HdrHistogram, which its plotter reads. Values
+     * are divided by scale, so nanoseconds with a scale of 1e6 are printed as milliseconds. Percentiles
+     * get closer together towards 100, ticksPerHalf of them every time the distance to 100 halves.
+     */
+    public void exportPercentiles(PrintStream out, double scale, int ticksPerHalf) {
+        out.println(String.format("%12s %14s %10s %14s", "Value", "Percentile", "TotalCount", "1/(1-Percentile)"));
+        out.println();
+
+        double percentile = 0;
+        while (total > 0) {
+            final long value = getValueAtPercentile(percentile);
+            final long count = countAtOrBelow(value);
+            if (count == total) {
+                break;
+            }
+            out.println(String.format("%12.3f %2.12f %10d %14.2f", value / scale, percentile / 100, count, 1 / (1 - percentile / 100)));
+            // the tick count doubles every time the remaining distance halves
+            final long halvings = (long) (Math.log(100 / (100 - percentile)) / Math.log(2)) + 1;
+            percentile += 100.0 / (ticksPerHalf * Math.pow(2, halvings));
+        }
+        out.println(String.format("%12.3f %2.12f %10d", max / scale, 1.0, total));
+
+        out.println(String.format("#[Mean    = %12.3f, Min         = %12.3f]", getMean() / scale, getMin() / scale));
+        out.println(String.format("#[Max     = %12.3f, Total count = %12d]", max / scale, total));
+        out.println(String.format("#[Buckets = %12d, SubBuckets  = %12d]", counts.length / half, half));
+    }
+
+    private long countAtOrBelow(long value) {
+        final int last = index(value);
+        long count = 0;
+        for (int i = 0; i <= last; i++) {
+            count += counts[i];
+        }
+        return count;
+    }
+}
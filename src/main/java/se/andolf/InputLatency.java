@@ -0,0 +1,119 @@
+package se.andolf;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+
+/**
+ * Measures how long a key press takes to reach the rom and the screen. A press is timestamped when the
+ * key event arrives, is observed the first time EX9E, EXA1 or FX0A reads that key as held, and is
+ * presented when the next frame after that has been shown. Presses the rom never reads are not counted.
+ *
+ * <p>Everything runs on the emulation thread: presses come in as {@link KeyEvents.Edge}s taken from
+ * the queue, and the CPU calls {@link #onKeyRead(int)} only while a press is waiting to be observed.
+ */
+public class InputLatency {
+
+    private static final int KEYS = 16;
+
+    private final Histogram toObserved = new Histogram();
+    private final Histogram toPresented = new Histogram();
+
+    // per key, when its last press came in and when that press was read, 0 until it is
+    private final long[] pressedAt = new long[KEYS];
+    private final long[] observedAt = new long[KEYS];
+    // bit n is set while the press of key n has not been observed
+    private int unobserved;
+    private long dropped;
+
+    public void onEdge(KeyEvents.Edge edge) {
+        if (!edge.isPressed()) {
+            return;
+        }
+        final int key = edge.getKey();
+        if ((unobserved & 1 << key) != 0) {
+            dropped++;
+        }
+        pressedAt[key] = edge.getNanos();
+        observedAt[key] = 0;
+        unobserved |= 1 << key;
+    }
+
+    /**
+     * True while a press is waiting to be observed, so the CPU only reports key reads that matter.
+     */
+    public boolean isWaiting() {
+        return unobserved != 0;
+    }
+
+    /**
+     * Called by the CPU when an instruction finds the keys in mask held.
+     */
+    public void onKeyRead(int mask) {
+        int observed = mask & unobserved;
+        if (observed == 0) {
+            return;
+        }
+        final long now = System.nanoTime();
+        unobserved &= ~observed;
+        while (observed != 0) {
+            final int key = Integer.numberOfTrailingZeros(observed);
+            observed &= observed - 1;
+            observedAt[key] = now;
+            toObserved.record(now - pressedAt[key]);
+        }
+    }
+
+    /**
+     * Called after a frame has been shown at {@link System#nanoTime()} now.
+     */
+    public void onPresented(long now) {
+        for (int key = 0; key < KEYS; key++) {
+            if (observedAt[key] != 0) {
+                toPresented.record(now - pressedAt[key]);
+                observedAt[key] = 0;
+            }
+        }
+    }
+
+    /**
+     * Forgets presses that have not been observed or presented yet, for when the machine stops running
+     * and timing them would count the pause.
+     */
+    public void discardPending() {
+        unobserved = 0;
+        Arrays.fill(observedAt, 0);
+    }
+
+    public Histogram getToObserved() {
+        return toObserved;
+    }
+
+    public Histogram getToPresented() {
+        return toPresented;
+    }
+
+    /**
+     * Presses replaced by another press of the same key before the rom read the first one.
+     */
+    public long getDropped() {
+        return dropped;
+    }
+
+    public String report() {
+        return String.format("input latency, key to rom p50: %.3f ms, p99: %.3f ms, key to screen p50: %.3f ms, p99: %.3f ms, max: %.3f ms, presses: %d",
+                toObserved.getValueAtPercentile(50) / 1e6, toObserved.getValueAtPercentile(99) / 1e6,
+                toPresented.getValueAtPercentile(50) / 1e6, toPresented.getValueAtPercentile(99) / 1e6,
+                toPresented.getMax() / 1e6, toPresented.getCount());
+    }
+
+    /**
+     * Writes both distributions in milliseconds, see {@link Histogram#exportPercentiles(PrintStream, double, int)}.
+     */
+    public void export(PrintStream out) {
+        out.println("# key press to first read by the rom, ms");
+        toObserved.exportPercentiles(out, 1e6, 5);
+        out.println();
+        out.println("# key press to the next frame shown after it was read, ms");
+        toPresented.exportPercentiles(out, 1e6, 5);
+    }
+}
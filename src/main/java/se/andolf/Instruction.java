@@ -0,0 +1,6 @@
+package se.andolf;
+
+@FunctionalInterface
+interface Instruction {
+    void execute(CPU cpu, int opcode);
+}
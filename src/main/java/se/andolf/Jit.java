@@ -0,0 +1,163 @@
+package se.andolf;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Arrays;
+
+/**
+ * Compiles straight-line basic blocks into chains of method handles with every opcode bound in,
+ * so a block runs as one call. A block ends at the first instruction that can change the flow of
+ * execution or write to memory, or after {@link #MAX_BLOCK_LENGTH} instructions. Blocks are cached by
+ * start address and the whole cache is dropped when memory holding compiled code is written to.
+ * Instructions run through the compiled blocks are not recorded in a {@link Trace}.
+ */
+public class Jit implements MemoryListener {
+
+    private static final int MAX_BLOCK_LENGTH = 32;
+    private static final int ADDRESS_MASK = Memory.SIZE - 1;
+    private static final MethodHandle EXECUTE;
+
+    static {
+        try {
+            EXECUTE = MethodHandles.lookup().findVirtual(Instruction.class, "execute",
+                    MethodType.methodType(void.class, CPU.class, int.class));
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final CPU cpu;
+    private final Memory memory;
+
+    private final MethodHandle[] blocks = new MethodHandle[Memory.SIZE];
+    private final int[] lengths = new int[Memory.SIZE];
+    private final boolean[] compiled = new boolean[Memory.SIZE];
+
+    private long compilations;
+    private long invalidations;
+
+    public Jit(CPU cpu, Memory memory) {
+        this.cpu = cpu;
+        this.memory = memory;
+        memory.addListener(this);
+    }
+
+    /**
+     * Runs the block starting at the current pc, compiling it first if needed.
+     *
+     * @return the number of instructions executed
+     */
+    public int step() {
+        final int address = cpu.getPC() & ADDRESS_MASK;
+        MethodHandle block = blocks[address];
+        if (block == null) {
+            block = compile(address);
+        }
+
+        try {
+            block.invokeExact(cpu);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+        return lengths[address];
+    }
+
+    @Override
+    public void onWrite(int address, int length) {
+        // an opcode starting the byte before the write is changed as well
+        for (int i = -1; i < length; i++) {
+            if (compiled[(address + i) & ADDRESS_MASK]) {
+                invalidate();
+                return;
+            }
+        }
+    }
+
+    public void invalidate() {
+        Arrays.fill(blocks, null);
+        Arrays.fill(compiled, false);
+        invalidations++;
+    }
+
+    public long getCompilations() {
+        return compilations;
+    }
+
+    public long getInvalidations() {
+        return invalidations;
+    }
+
+    private MethodHandle compile(int start) {
+        final MethodHandle[] instructions = new MethodHandle[MAX_BLOCK_LENGTH];
+        int length = 0;
+        int address = start;
+
+        while (length < MAX_BLOCK_LENGTH) {
+            final int opcode = memory.getOpcode(address);
+            instructions[length++] = MethodHandles.insertArguments(EXECUTE.bindTo(CPU.instruction(opcode)), 1, opcode);
+            compiled[address] = true;
+            compiled[(address + 1) & ADDRESS_MASK] = true;
+            address = (address + 2) & ADDRESS_MASK;
+
+            if (endsBlock(opcode) || address < start) {
+                break;
+            }
+        }
+
+        MethodHandle block = instructions[length - 1];
+        for (int i = length - 2; i >= 0; i--) {
+            block = MethodHandles.foldArguments(block, instructions[i]);
+        }
+
+        blocks[start] = block;
+        lengths[start] = length;
+        compilations++;
+        return block;
+    }
+
+    // jumps, calls, returns, skips, key waits, memory writes and unknown opcodes
+    private static boolean endsBlock(int opcode) {
+        switch (opcode & 0xF000) {
+            case 0x0000:
+                return opcode != 0x00E0;
+            case 0x6000:
+            case 0x7000:
+            case 0xA000:
+            case 0xC000:
+            case 0xD000:
+                return false;
+            case 0x8000:
+                switch (opcode & 0x000F) {
+                    case 0x0:
+                    case 0x1:
+                    case 0x2:
+                    case 0x3:
+                    case 0x4:
+                    case 0x5:
+                    case 0x6:
+                    case 0x7:
+                    case 0xE:
+                        return false;
+                    default:
+                        return true;
+                }
+            case 0xF000:
+                switch (opcode & 0x00FF) {
+                    case 0x07:
+                    case 0x15:
+                    case 0x18:
+                    case 0x1E:
+                    case 0x29:
+                    case 0x65:
+                        return false;
+                    default:
+                        return true;
+                }
+            default:
+                return true;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package se.andolf;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Key presses and releases in the order they happened, each with the {@link System#nanoTime()} it was
+ * seen at. Added to by the thread receiving key events and taken by the emulation thread, which can
+ * wait for the next one instead of polling the keyboard.
+ */
+public class KeyEvents {
+
+    public static final class Edge {
+
+        private final int key;
+        private final boolean pressed;
+        private final long nanos;
+
+        private Edge(int key, boolean pressed, long nanos) {
+            this.key = key;
+            this.pressed = pressed;
+            this.nanos = nanos;
+        }
+
+        public int getKey() {
+            return key;
+        }
+
+        public boolean isPressed() {
+            return pressed;
+        }
+
+        public long getNanos() {
+            return nanos;
+        }
+    }
+
+    private final Queue<Edge> edges = new ConcurrentLinkedQueue<>();
+    private volatile Thread waiter;
+
+    public void add(int key, boolean pressed) {
+        edges.add(new Edge(key, pressed, System.nanoTime()));
+        final Thread thread = waiter;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+     * @return the oldest edge, or null if there is none
+     */
+    public Edge poll() {
+        return edges.poll();
+    }
+
+    /**
+     * Takes the oldest edge, waiting for one until {@link System#nanoTime()} reaches deadline.
+     *
+     * @return the edge, or null if none came before the deadline
+     */
+    public Edge await(long deadline) {
+        waiter = Thread.currentThread();
+        try {
+            // an edge added after the poll unparks before the park, which then returns at once
+            Edge edge;
+            while ((edge = edges.poll()) == null) {
+                final long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return null;
+                }
+                LockSupport.parkNanos(this, remaining);
+            }
+            return edge;
+        } finally {
+            waiter = null;
+        }
+    }
+
+    public void clear() {
+        edges.clear();
+    }
+}
@@ -0,0 +1,64 @@
+package se.andolf;
+
+import java.util.Arrays;
+
+/**
+ * Scripted key presses for headless runs. A script is a comma separated list
+ * of {@code frame:+key} and {@code frame:-key} entries where key is a hex digit,
+ * example: {@code 60:+5,90:-5} holds key 5 from frame 60 to frame 90.
+ */
+public class KeyScript {
+
+    private final int[] frames;
+    private final int[] keys;
+    private final boolean[] pressed;
+    private int next;
+
+    private KeyScript(int[] frames, int[] keys, boolean[] pressed) {
+        this.frames = frames;
+        this.keys = keys;
+        this.pressed = pressed;
+    }
+
+    public static KeyScript empty() {
+        return new KeyScript(new int[0], new int[0], new boolean[0]);
+    }
+
+    public static KeyScript parse(String script) {
+        final String[] entries = script.split(",");
+        final long[] sorted = new long[entries.length];
+
+        for (int i = 0; i < entries.length; i++) {
+            final String[] parts = entries[i].trim().split(":");
+            if (parts.length != 2 || parts[1].length() != 2 || (parts[1].charAt(0) != '+' && parts[1].charAt(0) != '-')) {
+                throw new IllegalArgumentException("Invalid key script entry: " + entries[i]);
+            }
+            final long frame = Integer.parseInt(parts[0]);
+            final long key = Integer.parseInt(parts[1].substring(1), 16);
+            final long press = parts[1].charAt(0) == '+' ? 1 : 0;
+            sorted[i] = frame << 32 | (long) i << 5 | key << 1 | press;
+        }
+        Arrays.sort(sorted);
+
+        final int[] frames = new int[sorted.length];
+        final int[] keys = new int[sorted.length];
+        final boolean[] pressed = new boolean[sorted.length];
+        for (int i = 0; i < sorted.length; i++) {
+            frames[i] = (int) (sorted[i] >>> 32);
+            keys[i] = (int) (sorted[i] >>> 1) & 0xF;
+            pressed[i] = (sorted[i] & 1) == 1;
+        }
+        return new KeyScript(frames, keys, pressed);
+    }
+
+    public void apply(int frame, Keyboard keyboard) {
+        while (next < frames.length && frames[next] <= frame) {
+            if (pressed[next]) {
+                keyboard.press(keys[next]);
+            } else {
+                keyboard.release(keys[next]);
+            }
+            next++;
+        }
+    }
+}
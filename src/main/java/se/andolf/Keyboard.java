@@ -1,10 +1,33 @@
 package se.andolf;
 
 import java.awt.event.KeyEvent;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * The 16 keys as one bit mask, bit n is set when key n is held. The mask is atomic, so key events can
+ * be written from the AWT event thread while the emulation thread reads it.
+ */
 public class Keyboard {
 
-    private boolean keys[] = new boolean[16];
+    // AWT key code to key, -1 when not mapped. The keypad is laid out on 1-4, Q-R, A-F and Z-V:
+    // 1 2 3 C / 4 5 6 D / 7 8 9 E / A 0 B F
+    private static final byte[] KEY_CODES = new byte[256];
+
+    static {
+        Arrays.fill(KEY_CODES, (byte) -1);
+        final int[] layout = {
+                KeyEvent.VK_X, KeyEvent.VK_1, KeyEvent.VK_2, KeyEvent.VK_3,
+                KeyEvent.VK_Q, KeyEvent.VK_W, KeyEvent.VK_E, KeyEvent.VK_A,
+                KeyEvent.VK_S, KeyEvent.VK_D, KeyEvent.VK_Z, KeyEvent.VK_C,
+                KeyEvent.VK_4, KeyEvent.VK_R, KeyEvent.VK_F, KeyEvent.VK_V
+        };
+        for (int key = 0; key < layout.length; key++) {
+            KEY_CODES[layout[key]] = (byte) key;
+        }
+    }
+
+    private final AtomicInteger keys = new AtomicInteger();
 
     public static int[] FONTS = {
             0xF0, 0x90, 0x90, 0x90, 0xF0, // 0      0
@@ -25,121 +48,55 @@ public class Keyboard {
             0xF0, 0x80, 0xF0, 0x80, 0x80  // F
     };
 
-    public void onKeyPressed(int keyCode) {
-        switch (keyCode) {
-            case KeyEvent.VK_1:
-                keys[1] = true;
-                break;
-            case KeyEvent.VK_2:
-                keys[2] = true;
-                break;
-            case KeyEvent.VK_3:
-                keys[3] = true;
-                break;
-            case KeyEvent.VK_4:
-                keys[0xA] = true;
-                break;
-            case KeyEvent.VK_Q:
-                keys[4] = true;
-                break;
-            case KeyEvent.VK_W:
-                keys[5] = true;
-                break;
-            case KeyEvent.VK_E:
-                keys[6] = true;
-                break;
-            case KeyEvent.VK_R:
-                keys[0xD] = true;
-                break;
-            case KeyEvent.VK_A:
-                keys[7] = true;
-                break;
-            case KeyEvent.VK_S:
-                keys[8] = true;
-                break;
-            case KeyEvent.VK_D:
-                keys[9] = true;
-                break;
-            case KeyEvent.VK_F:
-                keys[0xE] = true;
-                break;
-            case KeyEvent.VK_Z:
-                keys[0xA] = true;
-                break;
-            case KeyEvent.VK_X:
-                keys[0] = true;
-                break;
-            case KeyEvent.VK_C:
-                keys[0xB] = true;
-                break;
-            case KeyEvent.VK_V:
-                keys[0xF] = true;
-                break;
-            default:
-                break;
-        }
+    /**
+     * The key an AWT key code is mapped to, or -1.
+     */
+    public static int key(int keyCode) {
+        return keyCode >= 0 && keyCode < KEY_CODES.length ? KEY_CODES[keyCode] : -1;
     }
 
-    public void onKeyReleased(int keyCode) {
-        switch (keyCode) {
-            case KeyEvent.VK_1:
-                keys[1] = false;
-                break;
-            case KeyEvent.VK_2:
-                keys[2] = false;
-                break;
-            case KeyEvent.VK_3:
-                keys[3] = false;
-                break;
-            case KeyEvent.VK_4:
-                keys[0xA] = false;
-                break;
-            case KeyEvent.VK_Q:
-                keys[4] = false;
-                break;
-            case KeyEvent.VK_W:
-                keys[5] = false;
-                break;
-            case KeyEvent.VK_E:
-                keys[6] = false;
-                break;
-            case KeyEvent.VK_R:
-                keys[0xD] = false;
-                break;
-            case KeyEvent.VK_A:
-                keys[7] = false;
-                break;
-            case KeyEvent.VK_S:
-                keys[8] = false;
-                break;
-            case KeyEvent.VK_D:
-                keys[9] = false;
-                break;
-            case KeyEvent.VK_F:
-                keys[0xE] = false;
-                break;
-            case KeyEvent.VK_Z:
-                keys[0xA] = false;
-                break;
-            case KeyEvent.VK_X:
-                keys[0] = false;
-                break;
-            case KeyEvent.VK_C:
-                keys[0xB] = false;
-                break;
-            case KeyEvent.VK_V:
-                keys[0xF] = false;
-                break;
-            default:
-                break;
-        }
+    /**
+     * @return true if the key code is mapped and the key was not already held, false for key repeats
+     */
+    public boolean onKeyPressed(int keyCode) {
+        final int key = key(keyCode);
+        return key >= 0 && press(key);
+    }
+
+    /**
+     * @return true if the key code is mapped and the key was held
+     */
+    public boolean onKeyReleased(int keyCode) {
+        final int key = key(keyCode);
+        return key >= 0 && release(key);
+    }
+
+    /**
+     * @return true if the key was not already held
+     */
+    public boolean press(int index) {
+        final int bit = 1 << index;
+        return (keys.getAndAccumulate(bit, (mask, b) -> mask | b) & bit) == 0;
+    }
+
+    /**
+     * @return true if the key was held
+     */
+    public boolean release(int index) {
+        final int bit = 1 << index;
+        return (keys.getAndAccumulate(bit, (mask, b) -> mask & ~b) & bit) != 0;
     }
 
     public boolean isPressed(int index) {
-        return keys[index];
+        return (keys.get() >>> index & 1) != 0;
+    }
+
+    // bit n is set when key n is held
+    public int getMask() {
+        return keys.get();
     }
 
-    public boolean[] getKeys() {
-        return keys;
+    public void setMask(int mask) {
+        keys.set(mask & 0xFFFF);
     }
 }
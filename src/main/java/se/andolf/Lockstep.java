@@ -0,0 +1,504 @@
+package se.andolf;
+
+/**
+ * Runs many copies of one rom side by side, with the state of every machine kept in shared
+ * primitive arrays instead of one CPU, Memory, Register and FrameBuffer per machine. Each copy is
+ * called a lane.
+ *
+ * <p>Each step fetches the opcode of every lane. When all lanes are at the same pc with the same
+ * opcode, it is decoded once and applied to all of them in a single loop over the lanes. Once they
+ * differ, every lane runs the rest of the frame on its own, and the next frame tries again. The
+ * semantics are the same as {@link CPU}, and lane n gives the same results as a {@link Machine}
+ * seeded with {@code new SplitMix(seed + n)}.
+ */
+public class Lockstep {
+
+    private static final int ADDRESS_MASK = Memory.SIZE - 1;
+    private static final int STACK_DEPTH = CPU.DEFAULT_STACK_DEPTH;
+
+    private final int lanes;
+
+    // lane n uses memory[n * 4096 ... n * 4096 + 4095], stack[n * 16 ...] and rows[n * 32 ...]
+    private final byte[] memory;
+    private final int[] stack;
+    private final long[] rows;
+
+    // register x of lane n is v[x * lanes + n], so an opcode applied to all lanes walks one run of the array
+    private final int[] v;
+    private final int[] pc;
+    private final int[] I;
+    private final int[] sp;
+    private final int[] delayTimer;
+    private final int[] soundTimer;
+    private final int[] keys;
+    // SplitMix state per lane
+    private final long[] random;
+
+    private final boolean[] idle;
+    private int active;
+    private long alignedInstructions;
+    private long instructions;
+
+    public Lockstep(byte[] rom, int lanes, long seed) {
+        if (rom.length > Memory.SIZE - Memory.PROGRAM_START) {
+            throw new IllegalArgumentException("Rom of " + rom.length + " bytes does not fit in " + (Memory.SIZE - Memory.PROGRAM_START) + " bytes of program memory");
+        }
+
+        this.lanes = lanes;
+        this.memory = new byte[lanes * Memory.SIZE];
+        this.stack = new int[lanes * STACK_DEPTH];
+        this.rows = new long[lanes * FrameBuffer.HEIGHT];
+        this.v = new int[16 * lanes];
+        this.pc = new int[lanes];
+        this.I = new int[lanes];
+        this.sp = new int[lanes];
+        this.delayTimer = new int[lanes];
+        this.soundTimer = new int[lanes];
+        this.keys = new int[lanes];
+        this.random = new long[lanes];
+        this.idle = new boolean[lanes];
+
+        for (int lane = 0; lane < lanes; lane++) {
+            final int base = lane * Memory.SIZE;
+            for (int i = 0; i < Keyboard.FONTS.length; i++) {
+                memory[base + i] = (byte) Keyboard.FONTS[i];
+            }
+            System.arraycopy(rom, 0, memory, base + Memory.PROGRAM_START, rom.length);
+            pc[lane] = Memory.PROGRAM_START;
+            random[lane] = seed + lane;
+        }
+    }
+
+    /**
+     * Runs up to cycles instructions on every lane and ticks the timers. Like {@link Machine#runFrame(int)}
+     * a lane sits out the rest of the frame once it is busy waiting.
+     *
+     * @return the number of instructions executed over all lanes
+     */
+    public int runFrame(int cycles) {
+        for (int lane = 0; lane < lanes; lane++) {
+            idle[lane] = false;
+        }
+        active = lanes;
+
+        int executed = 0;
+        for (int cycle = 0; cycle < cycles && active > 0; cycle++) {
+            final int opcode = active == lanes ? alignedOpcode() : -1;
+            if (opcode >= 0) {
+                executeAll(opcode);
+                executed += lanes;
+                alignedInstructions += lanes;
+                continue;
+            }
+
+            // the lanes went separate ways, run each one to the end of the frame so its memory stays
+            // in cache instead of touching every lane once per instruction
+            for (int lane = 0; lane < lanes; lane++) {
+                for (int remaining = cycle; remaining < cycles && !idle[lane]; remaining++) {
+                    execute(lane, fetch(lane));
+                    executed++;
+                }
+            }
+            break;
+        }
+        instructions += executed;
+
+        for (int lane = 0; lane < lanes; lane++) {
+            if (delayTimer[lane] > 0) {
+                delayTimer[lane]--;
+            }
+            if (soundTimer[lane] > 0) {
+                soundTimer[lane]--;
+            }
+        }
+        return executed;
+    }
+
+    // the opcode every lane is about to execute, or -1 if they differ
+    private int alignedOpcode() {
+        final int address = pc[0];
+        final byte high = memory[address & ADDRESS_MASK];
+        final byte low = memory[(address + 1) & ADDRESS_MASK];
+        for (int lane = 1; lane < lanes; lane++) {
+            final int base = lane * Memory.SIZE;
+            if (pc[lane] != address || memory[base + (address & ADDRESS_MASK)] != high
+                    || memory[base + ((address + 1) & ADDRESS_MASK)] != low) {
+                return -1;
+            }
+        }
+        return (high & 0xFF) << 8 | low & 0xFF;
+    }
+
+    private int fetch(int lane) {
+        final int base = lane * Memory.SIZE;
+        return (memory[base + (pc[lane] & ADDRESS_MASK)] & 0xFF) << 8 | memory[base + ((pc[lane] + 1) & ADDRESS_MASK)] & 0xFF;
+    }
+
+    private void setIdle(int lane) {
+        idle[lane] = true;
+        active--;
+    }
+
+    // applies an opcode to every lane, the register and timer opcodes as one loop over the lanes
+    private void executeAll(int opcode) {
+        final int vx = ((opcode & 0x0F00) >>> 8) * lanes;
+        final int vy = ((opcode & 0x00F0) >>> 4) * lanes;
+        final int nn = opcode & 0x00FF;
+
+        switch (opcode & 0xF000) {
+            case 0x6000:
+                for (int lane = 0; lane < lanes; lane++) {
+                    v[vx + lane] = nn;
+                    pc[lane] += 2;
+                }
+                return;
+            case 0x7000:
+                for (int lane = 0; lane < lanes; lane++) {
+                    v[vx + lane] = (v[vx + lane] + nn) & 0xFF;
+                    pc[lane] += 2;
+                }
+                return;
+            case 0x8000:
+                switch (opcode & 0x000F) {
+                    case 0x0:
+                        for (int lane = 0; lane < lanes; lane++) {
+                            v[vx + lane] = v[vy + lane];
+                            pc[lane] += 2;
+                        }
+                        return;
+                    case 0x1:
+                        for (int lane = 0; lane < lanes; lane++) {
+                            v[vx + lane] |= v[vy + lane];
+                            pc[lane] += 2;
+                        }
+                        return;
+                    case 0x2:
+                        for (int lane = 0; lane < lanes; lane++) {
+                            v[vx + lane] &= v[vy + lane];
+                            pc[lane] += 2;
+                        }
+                        return;
+                    case 0x3:
+                        for (int lane = 0; lane < lanes; lane++) {
+                            v[vx + lane] ^= v[vy + lane];
+                            pc[lane] += 2;
+                        }
+                        return;
+                    default:
+                        break;
+                }
+                break;
+            case 0xA000:
+                for (int lane = 0; lane < lanes; lane++) {
+                    I[lane] = opcode & 0x0FFF;
+                    pc[lane] += 2;
+                }
+                return;
+            case 0x3000:
+                for (int lane = 0; lane < lanes; lane++) {
+                    pc[lane] += v[vx + lane] == nn ? 4 : 2;
+                }
+                return;
+            case 0x4000:
+                for (int lane = 0; lane < lanes; lane++) {
+                    pc[lane] += v[vx + lane] != nn ? 4 : 2;
+                }
+                return;
+            case 0xF000:
+                switch (nn) {
+                    case 0x07:
+                        for (int lane = 0; lane < lanes; lane++) {
+                            v[vx + lane] = delayTimer[lane];
+                            pc[lane] += 2;
+                        }
+                        return;
+                    case 0x15:
+                        for (int lane = 0; lane < lanes; lane++) {
+                            delayTimer[lane] = v[vx + lane];
+                            pc[lane] += 2;
+                        }
+                        return;
+                    case 0x1E:
+                        for (int lane = 0; lane < lanes; lane++) {
+                            I[lane] += v[vx + lane];
+                            pc[lane] += 2;
+                        }
+                        return;
+                    default:
+                        break;
+                }
+                break;
+            default:
+                break;
+        }
+
+        for (int lane = 0; lane < lanes; lane++) {
+            execute(lane, opcode);
+        }
+    }
+
+    private void execute(int lane, int opcode) {
+        final int x = (opcode & 0x0F00) >>> 8;
+        final int vx = x * lanes + lane;
+        final int vy = ((opcode & 0x00F0) >>> 4) * lanes + lane;
+        final int vf = 0xF * lanes + lane;
+        final int nn = opcode & 0x00FF;
+        final int base = lane * Memory.SIZE;
+
+        switch (opcode & 0xF000) {
+            case 0x0000:
+                if (opcode == 0x00E0) {
+                    for (int y = 0; y < FrameBuffer.HEIGHT; y++) {
+                        rows[lane * FrameBuffer.HEIGHT + y] = 0;
+                    }
+                    pc[lane] += 2;
+                } else if (opcode == 0x00EE) {
+                    if (sp[lane] == 0) {
+                        throw new StackFault(StackFault.Kind.UNDERFLOW, pc[lane], "in lane " + lane);
+                    }
+                    pc[lane] = stack[lane * STACK_DEPTH + --sp[lane]] + 2;
+                }
+                // unknown opcodes leave the program counter untouched
+                return;
+            case 0x1000:
+                final int target = opcode & 0x0FFF;
+                if (target == pc[lane] || (target == pc[lane] - 4 && isDelayLoop(base, target))) {
+                    setIdle(lane);
+                }
+                pc[lane] = target;
+                return;
+            case 0x2000:
+                if (sp[lane] == STACK_DEPTH) {
+                    throw new StackFault(StackFault.Kind.OVERFLOW, pc[lane], "in lane " + lane);
+                }
+                stack[lane * STACK_DEPTH + sp[lane]++] = pc[lane];
+                pc[lane] = opcode & 0x0FFF;
+                return;
+            case 0x3000:
+                pc[lane] += v[vx] == nn ? 4 : 2;
+                return;
+            case 0x4000:
+                pc[lane] += v[vx] != nn ? 4 : 2;
+                return;
+            case 0x5000:
+                // like CPU, the low nibble is not checked
+                pc[lane] += v[vx] == v[vy] ? 4 : 2;
+                return;
+            case 0x6000:
+                v[vx] = nn;
+                pc[lane] += 2;
+                return;
+            case 0x7000:
+                v[vx] = (v[vx] + nn) & 0xFF;
+                pc[lane] += 2;
+                return;
+            case 0x8000:
+                executeArithmetic(lane, opcode, vx, vy, vf);
+                return;
+            case 0x9000:
+                if ((opcode & 0x000F) != 0) {
+                    return;
+                }
+                pc[lane] += v[vx] != v[vy] ? 4 : 2;
+                return;
+            case 0xA000:
+                I[lane] = opcode & 0x0FFF;
+                pc[lane] += 2;
+                return;
+            case 0xB000:
+                pc[lane] = (opcode & 0x0FFF) + v[lane];
+                return;
+            case 0xC000:
+                random[lane] += SplitMix.GOLDEN_GAMMA;
+                v[vx] = (int) (SplitMix.mix(random[lane]) >>> 56) & nn;
+                pc[lane] += 2;
+                return;
+            case 0xD000:
+                draw(lane, opcode, vx, vy, vf);
+                return;
+            case 0xE000:
+                if (nn == 0x9E) {
+                    pc[lane] += (keys[lane] >>> v[vx] & 1) != 0 ? 4 : 2;
+                } else if (nn == 0xA1) {
+                    pc[lane] += (keys[lane] >>> v[vx] & 1) == 0 ? 4 : 2;
+                }
+                return;
+            default:
+                executeMisc(lane, opcode, x, vx, base);
+        }
+    }
+
+    // FX07, FX0A and the other timer, index and memory opcodes
+    private void executeMisc(int lane, int opcode, int x, int vx, int base) {
+        switch (opcode & 0x00FF) {
+            case 0x07:
+                v[vx] = delayTimer[lane];
+                break;
+            case 0x0A:
+                // same as CPU, the highest held key is stored and every held key moves the program counter
+                if (keys[lane] == 0) {
+                    setIdle(lane);
+                    return;
+                }
+                v[vx] = 31 - Integer.numberOfLeadingZeros(keys[lane]);
+                pc[lane] += 2 * Integer.bitCount(keys[lane]);
+                return;
+            case 0x15:
+                delayTimer[lane] = v[vx];
+                break;
+            case 0x18:
+                soundTimer[lane] = v[vx];
+                break;
+            case 0x1E:
+                I[lane] += v[vx];
+                break;
+            case 0x29:
+                I[lane] = v[vx] * 5;
+                break;
+            case 0x33:
+                memory[base + (I[lane] & ADDRESS_MASK)] = (byte) (v[vx] / 100);
+                memory[base + ((I[lane] + 1) & ADDRESS_MASK)] = (byte) (v[vx] % 100 / 10);
+                memory[base + ((I[lane] + 2) & ADDRESS_MASK)] = (byte) (v[vx] % 10);
+                break;
+            case 0x55:
+                for (int i = 0; i <= x; i++) {
+                    memory[base + ((I[lane] + i) & ADDRESS_MASK)] = (byte) v[i * lanes + lane];
+                }
+                break;
+            case 0x65:
+                for (int i = 0; i <= x; i++) {
+                    v[i * lanes + lane] = memory[base + ((I[lane] + i) & ADDRESS_MASK)] & 0xFF;
+                }
+                break;
+            default:
+                return;
+        }
+        pc[lane] += 2;
+    }
+
+    // 8XY0 - 8XYE, VF is written before VX is read back, as in CPU, which matters when X or Y is F
+    private void executeArithmetic(int lane, int opcode, int vx, int vy, int vf) {
+        switch (opcode & 0x000F) {
+            case 0x0:
+                v[vx] = v[vy];
+                break;
+            case 0x1:
+                v[vx] |= v[vy];
+                break;
+            case 0x2:
+                v[vx] &= v[vy];
+                break;
+            case 0x3:
+                v[vx] ^= v[vy];
+                break;
+            case 0x4:
+                final int sum = v[vx] + v[vy];
+                v[vf] = sum > 0xFF ? 1 : 0;
+                v[vx] = sum & 0xFF;
+                break;
+            case 0x5:
+                final int x = v[vx];
+                v[vf] = v[vy] > x ? 0 : 1;
+                v[vx] = (x - v[vy]) & 0xFF;
+                break;
+            case 0x6:
+                v[vf] = v[vx] & 0x1;
+                v[vx] = v[vx] >>> 1;
+                break;
+            case 0x7:
+                v[vf] = v[vy] < v[vx] ? 0 : 1;
+                v[vx] = (v[vy] - v[vx]) & 0xFF;
+                break;
+            case 0xE:
+                v[vf] = (v[vx] & 0x80) > 0 ? 1 : 0;
+                v[vx] = (v[vx] << 1) & 0xFF;
+                break;
+            default:
+                return;
+        }
+        pc[lane] += 2;
+    }
+
+    // DXYN
+    private void draw(int lane, int opcode, int vx, int vy, int vf) {
+        final int base = lane * Memory.SIZE;
+        v[vf] = 0;
+        final int xCoord = v[vx];
+        final int yCoord = v[vy];
+        final int height = opcode & 0x000F;
+
+        boolean collision = false;
+        for (int line = 0; line < height; line++) {
+            final int bits = memory[base + ((I[lane] + line) & ADDRESS_MASK)];
+            final long sprite = Long.rotateRight((bits & 0xFFL) << 56, xCoord);
+            final int row = lane * FrameBuffer.HEIGHT + ((yCoord + line) & (FrameBuffer.HEIGHT - 1));
+            collision |= (rows[row] & sprite) != 0;
+            rows[row] ^= sprite;
+        }
+
+        if (collision) {
+            v[vf] = 1;
+        }
+        pc[lane] += 2;
+    }
+
+    // same check as CPU, FX07 then 3XNN or 4XNN on the same VX
+    private boolean isDelayLoop(int base, int start) {
+        final int load = (memory[base + (start & ADDRESS_MASK)] & 0xFF) << 8 | memory[base + ((start + 1) & ADDRESS_MASK)] & 0xFF;
+        final int skip = (memory[base + ((start + 2) & ADDRESS_MASK)] & 0xFF) << 8 | memory[base + ((start + 3) & ADDRESS_MASK)] & 0xFF;
+        if ((load & 0xF0FF) != 0xF007 || (skip & 0x0F00) != (load & 0x0F00)) {
+            return false;
+        }
+        return (skip & 0xF000) == 0x3000 || (skip & 0xF000) == 0x4000;
+    }
+
+    public void press(int lane, int key) {
+        keys[lane] |= 1 << key;
+    }
+
+    public void release(int lane, int key) {
+        keys[lane] &= ~(1 << key);
+    }
+
+    public int getLanes() {
+        return lanes;
+    }
+
+    public int getPC(int lane) {
+        return pc[lane];
+    }
+
+    public int getI(int lane) {
+        return I[lane];
+    }
+
+    public int getRegister(int lane, int index) {
+        return v[index * lanes + lane];
+    }
+
+    public int getDelayTimer(int lane) {
+        return delayTimer[lane];
+    }
+
+    public int getSoundTimer(int lane) {
+        return soundTimer[lane];
+    }
+
+    /**
+     * Same value as {@link FrameBuffer#hash()} for the display of the lane.
+     */
+    public int frameBufferHash(int lane) {
+        int hash = 1;
+        for (int y = 0; y < FrameBuffer.HEIGHT; y++) {
+            hash = 31 * hash + Long.hashCode(rows[lane * FrameBuffer.HEIGHT + y]);
+        }
+        return hash;
+    }
+
+    /**
+     * The fraction of instructions that ran with every lane on the same opcode.
+     */
+    public double getAlignedRatio() {
+        return instructions == 0 ? 0 : (double) alignedInstructions / instructions;
+    }
+}
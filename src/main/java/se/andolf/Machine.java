@@ -0,0 +1,123 @@
+package se.andolf;
+
+public class Machine {
+
+    public static final int DEFAULT_CYCLES_PER_FRAME = 10;
+
+    private final Memory memory;
+    private final Register register;
+    private final Keyboard keyboard;
+    private final FrameBuffer frameBuffer;
+    private final CPU cpu;
+    private Jit jit;
+
+    public Machine(byte[] gameData, RandomSource random) {
+        this(gameData, random, CPU.DEFAULT_STACK_DEPTH);
+    }
+
+    public Machine(byte[] gameData, RandomSource random, int stackDepth) {
+        this.memory = new Memory();
+        this.register = new Register();
+        this.keyboard = new Keyboard();
+        this.frameBuffer = new FrameBuffer();
+
+        memory.loadData(gameData);
+
+        this.cpu = new CPU(memory, register, random, keyboard, frameBuffer, stackDepth);
+    }
+
+    private Machine(Machine parent, RandomSource random) {
+        this.memory = parent.memory.fork();
+        this.register = parent.register.copy();
+        this.keyboard = new Keyboard();
+        this.frameBuffer = parent.frameBuffer.copy();
+
+        this.cpu = new CPU(memory, register, random, keyboard, frameBuffer, parent.cpu.getStackDepth());
+        cpu.copyState(parent.cpu);
+    }
+
+    /**
+     * A machine that continues from the current state of this one. Memory is shared page by page
+     * until either machine writes to it, the rest of the state is copied. The fork starts without
+     * held keys, and without the compiler or decode cache, which can be enabled again. Random numbers
+     * come from random as it is, its state is not copied from this machine.
+     */
+    public Machine fork(RandomSource random) {
+        return new Machine(this, random);
+    }
+
+    /**
+     * Runs up to cycles instructions and ticks the timers. The rest of the frame is skipped when the
+     * rom is busy waiting for a timer tick or key press. That is not quite the same as spinning: pc is
+     * left at the wait instead of wherever the loop had got to, and a key pressed later in the frame is
+     * only seen when the caller continues with {@link #run(int)} or at the next frame.
+     *
+     * @return the number of instructions executed
+     */
+    public int runFrame(int cycles) {
+        final int executed = run(cycles);
+        cpu.tickTimers();
+        return executed;
+    }
+
+    /**
+     * Runs up to cycles instructions like {@link #runFrame(int)} without ticking the timers, so a frame
+     * that stopped to wait for a key can be continued within the same tick.
+     *
+     * @return the number of instructions executed
+     */
+    public int run(int cycles) {
+        int executed = 0;
+        while (executed < cycles) {
+            // blocks run as a whole, so a frame can run a few instructions over
+            if (jit != null) {
+                executed += jit.step();
+            } else {
+                cpu.emulateCycle();
+                executed++;
+            }
+
+            if (cpu.isIdle()) {
+                cpu.setIdle(false);
+                break;
+            }
+        }
+        return executed;
+    }
+
+    public void enableJit() {
+        if (jit == null) {
+            jit = new Jit(cpu, memory);
+        }
+    }
+
+    public void enableDecodeCache() {
+        if (cpu.getDecodeCache() == null) {
+            cpu.setDecodeCache(new DecodeCache(memory));
+        }
+    }
+
+    public Jit getJit() {
+        return jit;
+    }
+
+    public Memory getMemory() {
+        return memory;
+    }
+
+    public Register getRegister() {
+        return register;
+    }
+
+    public Keyboard getKeyboard() {
+        return keyboard;
+    }
+
+    public FrameBuffer getFrameBuffer() {
+        return frameBuffer;
+    }
+
+    public CPU getCPU() {
+        return cpu;
+    }
+}
@@ -1,33 +1,158 @@
 package se.andolf;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * 4KB of byte addressable memory. Addresses outside of 0x000-0xFFF wrap around,
+ * so reads and writes past the end continue at the start of memory. Listeners are
+ * told about every write so caches of decoded code can be invalidated.
+ *
+ * <p>Memory is split into 16 pages of 256 bytes. {@link #fork()} shares every page with the copy,
+ * and a shared page is copied the first time either side writes to it.
+ */
 public class Memory {
 
-    private int[] memory = new int[4096];
+    public static final int SIZE = 4096;
+    public static final int PROGRAM_START = 0x200;
+    public static final int PAGE_SIZE = 256;
+    public static final int PAGES = SIZE / PAGE_SIZE;
+
+    private static final int ADDRESS_MASK = SIZE - 1;
+    private static final int OFFSET_MASK = PAGE_SIZE - 1;
+    private static final int PAGE_SHIFT = 8;
+    private static final MemoryListener[] NO_LISTENERS = new MemoryListener[0];
+
+    private final byte[][] pages;
+    // bit p is set when page p belongs to this memory alone and can be written in place
+    private int owned;
+    private MemoryListener[] listeners = NO_LISTENERS;
 
     public Memory() {
-        System.arraycopy(Keyboard.FONTS, 0, memory, 0, 80);
+        pages = new byte[PAGES][PAGE_SIZE];
+        owned = (1 << PAGES) - 1;
+        for (int i = 0; i < Keyboard.FONTS.length; i++) {
+            pages[0][i] = (byte) Keyboard.FONTS[i];
+        }
+    }
+
+    private Memory(byte[][] pages) {
+        this.pages = pages;
+    }
+
+    /**
+     * A copy of this memory that shares every page with it until one of them writes to the page.
+     * Listeners are not copied.
+     */
+    public Memory fork() {
+        owned = 0;
+        return new Memory(pages.clone());
     }
 
     public void loadData(byte[] data) {
-        for (int i = 0; i < data.length; i++) {
-            setByte(i + 512, (data[i] & 0xFF));
+        if (data.length > SIZE - PROGRAM_START) {
+            throw new IllegalArgumentException("Rom of " + data.length + " bytes does not fit in " + (SIZE - PROGRAM_START) + " bytes of program memory");
         }
+        copyIn(PROGRAM_START, data, 0, data.length);
+        written(PROGRAM_START, data.length);
+    }
 
+    public void addListener(MemoryListener listener) {
+        listeners = Arrays.copyOf(listeners, listeners.length + 1);
+        listeners[listeners.length - 1] = listener;
+    }
+
+    public void removeListener(MemoryListener listener) {
+        for (int i = 0; i < listeners.length; i++) {
+            if (listeners[i] == listener) {
+                final MemoryListener[] remaining = new MemoryListener[listeners.length - 1];
+                System.arraycopy(listeners, 0, remaining, 0, i);
+                System.arraycopy(listeners, i + 1, remaining, i, remaining.length - i);
+                listeners = remaining;
+                return;
+            }
+        }
     }
 
     public int getByte(int index) {
-        return memory[index];
+        final int address = index & ADDRESS_MASK;
+        return pages[address >>> PAGE_SHIFT][address & OFFSET_MASK] & 0xFF;
     }
 
     public void setByte(int index, int value) {
-        memory[index] = value;
+        final int address = index & ADDRESS_MASK;
+        writablePage(address >>> PAGE_SHIFT)[address & OFFSET_MASK] = (byte) value;
+        written(index, 1);
+    }
+
+    public void read(int address, byte[] dst, int offset, int length) {
+        while (length > 0) {
+            final int start = address & ADDRESS_MASK;
+            final int count = Math.min(length, PAGE_SIZE - (start & OFFSET_MASK));
+            System.arraycopy(pages[start >>> PAGE_SHIFT], start & OFFSET_MASK, dst, offset, count);
+            address += count;
+            offset += count;
+            length -= count;
+        }
+    }
+
+    public void write(int address, byte[] src, int offset, int length) {
+        copyIn(address, src, offset, length);
+        written(address, length);
     }
 
     public int size() {
-        return memory.length;
+        return SIZE;
     }
 
     public int getOpcode(int pc) {
-        return (getByte(pc)) << 8 | getByte(pc + 1);
+        final int high = pc & ADDRESS_MASK;
+        final int low = (pc + 1) & ADDRESS_MASK;
+        return (pages[high >>> PAGE_SHIFT][high & OFFSET_MASK] & 0xFF) << 8 | pages[low >>> PAGE_SHIFT][low & OFFSET_MASK] & 0xFF;
+    }
+
+    /**
+     * The number of pages shared with a fork, or with the memory it was forked from.
+     */
+    public int getSharedPages() {
+        return PAGES - Integer.bitCount(owned);
+    }
+
+    private void copyIn(int address, byte[] src, int offset, int length) {
+        while (length > 0) {
+            final int start = address & ADDRESS_MASK;
+            final int count = Math.min(length, PAGE_SIZE - (start & OFFSET_MASK));
+            System.arraycopy(src, offset, writablePage(start >>> PAGE_SHIFT), start & OFFSET_MASK, count);
+            address += count;
+            offset += count;
+            length -= count;
+        }
+    }
+
+    private byte[] writablePage(int page) {
+        if ((owned & 1 << page) == 0) {
+            pages[page] = pages[page].clone();
+            owned |= 1 << page;
+        }
+        return pages[page];
+    }
+
+    void save(ByteBuffer out) {
+        for (byte[] page : pages) {
+            out.put(page);
+        }
+    }
+
+    void restore(ByteBuffer in) {
+        for (int page = 0; page < PAGES; page++) {
+            in.get(writablePage(page));
+        }
+        written(0, SIZE);
+    }
+
+    private void written(int address, int length) {
+        for (MemoryListener listener : listeners) {
+            listener.onWrite(address & ADDRESS_MASK, length);
+        }
     }
 }
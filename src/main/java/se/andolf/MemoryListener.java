@@ -0,0 +1,6 @@
+package se.andolf;
+
+@FunctionalInterface
+public interface MemoryListener {
+    void onWrite(int address, int length);
+}
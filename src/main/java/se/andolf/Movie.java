@@ -0,0 +1,203 @@
+package se.andolf;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Everything needed to play a run of a rom again: the random seed, the keys held in every frame and
+ * the framebuffer hash every checkpointInterval frames to check the replay against. Stored big endian:
+ * <pre>
+ * magic                4 bytes  "C8MV"
+ * version              1 byte
+ * flags                1 byte, bit 0 set when recorded with the compiler
+ * rom CRC-32           4 bytes
+ * seed                 8 bytes
+ * cycles per frame     4 bytes
+ * checkpoint interval  4 bytes
+ * frames               4 bytes
+ * key masks            2 bytes per frame, bit n is key n
+ * checkpoints          4 bytes per checkpoint interval frames, the framebuffer hash after that frame
+ * </pre>
+ * Keys are applied before a frame runs and the hash is taken after it. The seed is for {@link SplitMix},
+ * version 1 movies were seeded for java.util.Random and can not be replayed.
+ */
+public class Movie {
+
+    public static final int VERSION = 2;
+    public static final int DEFAULT_CHECKPOINT_INTERVAL = 60;
+
+    private static final int MAGIC = 'C' << 24 | '8' << 16 | 'M' << 8 | 'V';
+    private static final int FLAG_JIT = 1;
+    private static final int INITIAL_FRAMES = 1024;
+    private static final int INITIAL_CHECKPOINTS = 16;
+
+    private final int romChecksum;
+    private final long seed;
+    private final int cyclesPerFrame;
+    private final boolean jit;
+    private final int checkpointInterval;
+
+    private char[] keys;
+    private int[] checkpoints;
+    private int frames;
+
+    public Movie(byte[] rom, long seed, int cyclesPerFrame, boolean jit, int checkpointInterval) {
+        this(checksum(rom), seed, cyclesPerFrame, jit, checkpointInterval, new char[INITIAL_FRAMES], new int[INITIAL_CHECKPOINTS], 0);
+    }
+
+    private Movie(int romChecksum, long seed, int cyclesPerFrame, boolean jit, int checkpointInterval,
+                  char[] keys, int[] checkpoints, int frames) {
+        if (checkpointInterval <= 0) {
+            throw new IllegalArgumentException("Checkpoint interval must be positive, was " + checkpointInterval);
+        }
+        this.romChecksum = romChecksum;
+        this.seed = seed;
+        this.cyclesPerFrame = cyclesPerFrame;
+        this.jit = jit;
+        this.checkpointInterval = checkpointInterval;
+        this.keys = keys;
+        this.checkpoints = checkpoints;
+        this.frames = frames;
+    }
+
+    public static int checksum(byte[] rom) {
+        final CRC32 crc = new CRC32();
+        crc.update(rom);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * A machine in the state the recording started from.
+     *
+     * @throws IllegalArgumentException if rom is not the rom the movie was recorded with
+     */
+    public Machine newMachine(byte[] rom) {
+        if (checksum(rom) != romChecksum) {
+            throw new IllegalArgumentException("The movie was recorded with another rom");
+        }
+        final Machine machine = new Machine(rom, new SplitMix(seed));
+        if (jit) {
+            machine.enableJit();
+        }
+        return machine;
+    }
+
+    /**
+     * Adds a frame that just ran with the keys in keyMask held.
+     */
+    public void record(int keyMask, FrameBuffer frameBuffer) {
+        if (frames == keys.length) {
+            keys = Arrays.copyOf(keys, keys.length * 2);
+        }
+        keys[frames++] = (char) keyMask;
+
+        if (frames % checkpointInterval == 0) {
+            final int checkpoint = frames / checkpointInterval - 1;
+            if (checkpoint == checkpoints.length) {
+                checkpoints = Arrays.copyOf(checkpoints, checkpoints.length * 2);
+            }
+            checkpoints[checkpoint] = frameBuffer.hash();
+        }
+    }
+
+    /**
+     * Plays every frame on a machine from {@link #newMachine(byte[])} and checks the framebuffer at
+     * every checkpoint.
+     *
+     * @return the first frame whose checkpoint did not match, counted from 1, or 0 if all of them matched
+     */
+    public int replay(Machine machine) {
+        final Keyboard keyboard = machine.getKeyboard();
+        for (int frame = 0; frame < frames; frame++) {
+            keyboard.setMask(keys[frame]);
+            machine.runFrame(cyclesPerFrame);
+
+            if ((frame + 1) % checkpointInterval == 0
+                    && machine.getFrameBuffer().hash() != checkpoints[(frame + 1) / checkpointInterval - 1]) {
+                return frame + 1;
+            }
+        }
+        return 0;
+    }
+
+    public void write(OutputStream out) throws IOException {
+        final DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(MAGIC);
+        data.writeByte(VERSION);
+        data.writeByte(jit ? FLAG_JIT : 0);
+        data.writeInt(romChecksum);
+        data.writeLong(seed);
+        data.writeInt(cyclesPerFrame);
+        data.writeInt(checkpointInterval);
+        data.writeInt(frames);
+        for (int frame = 0; frame < frames; frame++) {
+            data.writeChar(keys[frame]);
+        }
+        for (int checkpoint = 0; checkpoint < frames / checkpointInterval; checkpoint++) {
+            data.writeInt(checkpoints[checkpoint]);
+        }
+        data.flush();
+    }
+
+    /**
+     * @throws IOException if in does not hold a complete movie of this version
+     */
+    public static Movie read(InputStream in) throws IOException {
+        final DataInputStream data = new DataInputStream(in);
+        if (data.readInt() != MAGIC) {
+            throw new IOException("Not a movie");
+        }
+        final int version = data.readUnsignedByte();
+        if (version != VERSION) {
+            throw new IOException("Unsupported movie version " + version + ", expected " + VERSION);
+        }
+        final boolean jit = (data.readUnsignedByte() & FLAG_JIT) != 0;
+        final int romChecksum = data.readInt();
+        final long seed = data.readLong();
+        final int cyclesPerFrame = data.readInt();
+        final int checkpointInterval = data.readInt();
+        final int frames = data.readInt();
+        if (frames < 0 || checkpointInterval <= 0) {
+            throw new IOException("Corrupt movie header");
+        }
+
+        // the arrays grow as the data is read, so a corrupt frame count fails at the end of the stream
+        // instead of allocating whatever it claims up front
+        char[] keys = new char[Math.min(Math.max(frames, 1), INITIAL_FRAMES)];
+        for (int frame = 0; frame < frames; frame++) {
+            if (frame == keys.length) {
+                keys = Arrays.copyOf(keys, keys.length * 2);
+            }
+            keys[frame] = data.readChar();
+        }
+        int[] checkpoints = new int[Math.min(Math.max(frames / checkpointInterval, 1), INITIAL_CHECKPOINTS)];
+        for (int checkpoint = 0; checkpoint < frames / checkpointInterval; checkpoint++) {
+            if (checkpoint == checkpoints.length) {
+                checkpoints = Arrays.copyOf(checkpoints, checkpoints.length * 2);
+            }
+            checkpoints[checkpoint] = data.readInt();
+        }
+        return new Movie(romChecksum, seed, cyclesPerFrame, jit, checkpointInterval, keys, checkpoints, frames);
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    public int getCyclesPerFrame() {
+        return cyclesPerFrame;
+    }
+
+    public int getFrames() {
+        return frames;
+    }
+
+    public int getCheckpoints() {
+        return frames / checkpointInterval;
+    }
+}
@@ -0,0 +1,95 @@
+package se.andolf;
+
+/**
+ * The instruction an opcode decodes to, named by its pattern. Looking up an opcode is a single array
+ * read, so it can be done for every executed instruction.
+ */
+public enum OpcodeClass {
+
+    CLS("00E0", 0xFFFF, 0x00E0),
+    RET("00EE", 0xFFFF, 0x00EE),
+    JP("1NNN", 0xF000, 0x1000),
+    CALL("2NNN", 0xF000, 0x2000),
+    SE_BYTE("3XNN", 0xF000, 0x3000),
+    SNE_BYTE("4XNN", 0xF000, 0x4000),
+    SE_REGISTER("5XY0", 0xF000, 0x5000),
+    LD_BYTE("6XNN", 0xF000, 0x6000),
+    ADD_BYTE("7XNN", 0xF000, 0x7000),
+    LD_REGISTER("8XY0", 0xF00F, 0x8000),
+    OR("8XY1", 0xF00F, 0x8001),
+    AND("8XY2", 0xF00F, 0x8002),
+    XOR("8XY3", 0xF00F, 0x8003),
+    ADD_REGISTER("8XY4", 0xF00F, 0x8004),
+    SUB("8XY5", 0xF00F, 0x8005),
+    SHR("8XY6", 0xF00F, 0x8006),
+    SUBN("8XY7", 0xF00F, 0x8007),
+    SHL("8XYE", 0xF00F, 0x800E),
+    SNE_REGISTER("9XY0", 0xF00F, 0x9000),
+    LD_I("ANNN", 0xF000, 0xA000),
+    JP_V0("BNNN", 0xF000, 0xB000),
+    RND("CXNN", 0xF000, 0xC000),
+    DRW("DXYN", 0xF000, 0xD000),
+    SKP("EX9E", 0xF0FF, 0xE09E),
+    SKNP("EXA1", 0xF0FF, 0xE0A1),
+    LD_DELAY("FX07", 0xF0FF, 0xF007),
+    LD_KEY("FX0A", 0xF0FF, 0xF00A),
+    SET_DELAY("FX15", 0xF0FF, 0xF015),
+    SET_SOUND("FX18", 0xF0FF, 0xF018),
+    ADD_I("FX1E", 0xF0FF, 0xF01E),
+    LD_FONT("FX29", 0xF0FF, 0xF029),
+    BCD("FX33", 0xF0FF, 0xF033),
+    STORE("FX55", 0xF0FF, 0xF055),
+    LOAD("FX65", 0xF0FF, 0xF065),
+    UNKNOWN("????", 0, 0);
+
+    private static final OpcodeClass[] VALUES = values();
+    private static final byte[] CLASSES = new byte[0x10000];
+
+    static {
+        for (int opcode = 0; opcode < CLASSES.length; opcode++) {
+            OpcodeClass match = UNKNOWN;
+            if (!CPU.isUnknown(opcode)) {
+                for (OpcodeClass opcodeClass : VALUES) {
+                    if ((opcode & opcodeClass.mask) == opcodeClass.value) {
+                        match = opcodeClass;
+                        break;
+                    }
+                }
+            }
+            CLASSES[opcode] = (byte) match.ordinal();
+        }
+    }
+
+    private final String pattern;
+    private final int mask;
+    private final int value;
+
+    OpcodeClass(String pattern, int mask, int value) {
+        this.pattern = pattern;
+        this.mask = mask;
+        this.value = value;
+    }
+
+    /**
+     * The ordinal of the class of opcode, for indexing counters.
+     */
+    public static int index(int opcode) {
+        return CLASSES[opcode];
+    }
+
+    public static OpcodeClass of(int opcode) {
+        return VALUES[CLASSES[opcode]];
+    }
+
+    public static OpcodeClass get(int index) {
+        return VALUES[index];
+    }
+
+    public static int count() {
+        return VALUES.length;
+    }
+
+    public String getPattern() {
+        return pattern;
+    }
+}
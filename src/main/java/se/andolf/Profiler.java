@@ -0,0 +1,182 @@
+package se.andolf;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.stream.IntStream;
+
+/**
+ * Counts executed instructions per address and per opcode class. Recording is a single array increment
+ * per address, the counts are read as unsigned so one address can run 2^32 times before it wraps. Only
+ * instructions run by {@link CPU#emulateCycle()} are counted, not blocks run by the compiler.
+ *
+ * <p>Opcode classes are not counted while running. The count of an address is given to the class of the
+ * opcode there when it is read, and when the opcode is written over, so self-modifying roms are counted
+ * by what actually ran.
+ */
+public class Profiler implements MemoryListener {
+
+    // the heat map draws every address as a MAP_SCALE square, 64 addresses per row
+    private static final int MAP_WIDTH = 64;
+    private static final int MAP_SCALE = 8;
+
+    private static final int ADDRESS_MASK = Memory.SIZE - 1;
+
+    private final Memory memory;
+    private final int[] pcCounts = new int[Memory.SIZE];
+    // counts of opcodes that have been written over, by class
+    private final long[] classCounts = new long[OpcodeClass.count()];
+    // the opcode at every address and how much of its count has gone to classCounts
+    private final char[] opcodes = new char[Memory.SIZE];
+    private final int[] attributed = new int[Memory.SIZE];
+
+    public Profiler(Memory memory) {
+        this.memory = memory;
+        for (int pc = 0; pc < Memory.SIZE; pc++) {
+            opcodes[pc] = (char) memory.getOpcode(pc);
+        }
+        memory.addListener(this);
+    }
+
+    public void record(int pc) {
+        pcCounts[pc & ADDRESS_MASK]++;
+    }
+
+    public long getCount(int pc) {
+        return Integer.toUnsignedLong(pcCounts[pc & ADDRESS_MASK]);
+    }
+
+    public long getCount(OpcodeClass opcodeClass) {
+        return getClassCounts()[opcodeClass.ordinal()];
+    }
+
+    /**
+     * The counts of every opcode class, indexed by ordinal.
+     */
+    public long[] getClassCounts() {
+        final long[] counts = classCounts.clone();
+        for (int pc = 0; pc < Memory.SIZE; pc++) {
+            counts[OpcodeClass.index(opcodes[pc])] += unattributed(pc);
+        }
+        return counts;
+    }
+
+    public long getTotal() {
+        long total = 0;
+        for (int count : pcCounts) {
+            total += Integer.toUnsignedLong(count);
+        }
+        return total;
+    }
+
+    public void reset() {
+        Arrays.fill(pcCounts, 0);
+        Arrays.fill(classCounts, 0);
+        Arrays.fill(attributed, 0);
+    }
+
+    /**
+     * Stops listening to memory, the counts so far are kept.
+     */
+    public void detach() {
+        memory.removeListener(this);
+    }
+
+    @Override
+    public void onWrite(int address, int length) {
+        // an opcode starting the byte before the write is changed as well
+        for (int i = -1; i < Math.min(length, Memory.SIZE); i++) {
+            final int pc = (address + i) & ADDRESS_MASK;
+            classCounts[OpcodeClass.index(opcodes[pc])] += unattributed(pc);
+            attributed[pc] = pcCounts[pc];
+            opcodes[pc] = (char) memory.getOpcode(pc);
+        }
+    }
+
+    private long unattributed(int pc) {
+        return Integer.toUnsignedLong(pcCounts[pc] - attributed[pc]);
+    }
+
+    /**
+     * The addresses that ran at least once, the most executed first.
+     */
+    public int[] getHotSpots() {
+        return IntStream.range(0, Memory.SIZE)
+                .filter(pc -> pcCounts[pc] != 0)
+                .boxed()
+                .sorted(Comparator.comparingLong((Integer pc) -> getCount(pc)).reversed().thenComparingInt(pc -> pc))
+                .mapToInt(Integer::intValue)
+                .toArray();
+    }
+
+    /**
+     * Prints the opcode classes by count and the top most executed addresses with their opcode.
+     */
+    public void report(PrintStream out, int top) {
+        final long total = getTotal();
+        out.printf("instructions: %d%n", total);
+        if (total == 0) {
+            return;
+        }
+
+        out.println("opcode     count       %");
+        final long[] classTotals = getClassCounts();
+        Arrays.stream(OpcodeClass.values())
+                .filter(opcodeClass -> classTotals[opcodeClass.ordinal()] != 0)
+                .sorted(Comparator.comparingLong((OpcodeClass opcodeClass) -> classTotals[opcodeClass.ordinal()]).reversed())
+                .forEach(opcodeClass -> out.printf("%-6s %11d %7.2f%n", opcodeClass.getPattern(),
+                        classTotals[opcodeClass.ordinal()], classTotals[opcodeClass.ordinal()] * 100.0 / total));
+
+        out.println("pc     opcode       count       %  cumulative %");
+        final int[] hotSpots = getHotSpots();
+        long cumulative = 0;
+        for (int i = 0; i < Math.min(top, hotSpots.length); i++) {
+            final int pc = hotSpots[i];
+            final int opcode = opcodes[pc];
+            cumulative += getCount(pc);
+            out.printf("%03x    %04x %-6s %11d %7.2f %7.2f%n", pc, opcode, OpcodeClass.of(opcode).getPattern(),
+                    getCount(pc), getCount(pc) * 100.0 / total, cumulative * 100.0 / total);
+        }
+    }
+
+    /**
+     * Writes a PNG of the 4 KB address space, 64 addresses per row from 0x000 at the top left. Addresses
+     * that never ran are black, the rest go from dark red to white on a log scale of their count.
+     */
+    public void writeHeatMap(OutputStream out) throws IOException {
+        final int height = Memory.SIZE / MAP_WIDTH;
+        final BufferedImage image = new BufferedImage(MAP_WIDTH * MAP_SCALE, height * MAP_SCALE, BufferedImage.TYPE_INT_RGB);
+
+        long max = 1;
+        for (int pc = 0; pc < Memory.SIZE; pc++) {
+            max = Math.max(max, getCount(pc));
+        }
+        final double logMax = Math.log1p(max);
+
+        for (int pc = 0; pc < Memory.SIZE; pc++) {
+            final long count = getCount(pc);
+            final int rgb = count == 0 ? 0 : heat(Math.log1p(count) / logMax);
+            final int x0 = (pc % MAP_WIDTH) * MAP_SCALE;
+            final int y0 = (pc / MAP_WIDTH) * MAP_SCALE;
+            for (int y = y0; y < y0 + MAP_SCALE; y++) {
+                for (int x = x0; x < x0 + MAP_SCALE; x++) {
+                    image.setRGB(x, y, rgb);
+                }
+            }
+        }
+        ImageIO.write(image, "png", out);
+    }
+
+    // 0 is dark red, then through red and yellow to white at 1
+    private static int heat(double level) {
+        final double scaled = 0.2 + level * 2.8;
+        final int red = (int) (255 * Math.min(1, scaled));
+        final int green = (int) (255 * Math.max(0, Math.min(1, scaled - 1)));
+        final int blue = (int) (255 * Math.max(0, Math.min(1, scaled - 2)));
+        return red << 16 | green << 8 | blue;
+    }
+}
@@ -0,0 +1,15 @@
+package se.andolf;
+
+/**
+ * Random numbers for CXNN. Implementations are not thread safe, every machine owns its own.
+ * The state is part of save states, so a restored machine draws the same numbers again.
+ */
+public interface RandomSource {
+
+    // a value from 0 to 255
+    int nextByte();
+
+    long getState();
+
+    void setState(long state);
+}
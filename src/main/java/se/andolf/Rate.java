@@ -0,0 +1,27 @@
+package se.andolf;
+
+/**
+ * Events per second over windows of at least a second. Added to by one thread and read by any.
+ */
+final class Rate {
+
+    private static final long WINDOW_NANOS = 1_000_000_000L;
+
+    private long windowStart = System.nanoTime();
+    private long count;
+    private volatile double perSecond;
+
+    void add(long events, long now) {
+        count += events;
+        final long elapsed = now - windowStart;
+        if (elapsed >= WINDOW_NANOS) {
+            perSecond = count * 1e9 / elapsed;
+            count = 0;
+            windowStart = now;
+        }
+    }
+
+    double get() {
+        return perSecond;
+    }
+}
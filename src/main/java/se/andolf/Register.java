@@ -1,25 +1,46 @@
 package se.andolf;
 
-import java.util.function.IntUnaryOperator;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 public class Register {
-    private Integer[] V = new Integer[16];
-
-    public Register() {
-        for (int i = 0; i < 16; i++) {
-            V[i] = 0;
-        }
-    }
+    private final byte[] V = new byte[16];
 
     public int get(int index) {
-        return V[index];
+        return V[index] & 0xFF;
     }
 
+    // values wrap around to 8 bits
     public void set(int index, int value) {
-        V[index] = value;
+        V[index] = (byte) value;
+    }
+
+    // copies V0 to V(count - 1) into memory starting at address
+    public void store(Memory memory, int address, int count) {
+        memory.write(address, V, 0, count);
+    }
+
+    // fills V0 to V(count - 1) from memory starting at address
+    public void load(Memory memory, int address, int count) {
+        memory.read(address, V, 0, count);
+    }
+
+    public Register copy() {
+        final Register copy = new Register();
+        System.arraycopy(V, 0, copy.V, 0, V.length);
+        return copy;
+    }
+
+    // true if values holds the same 16 registers, one vectorized compare for Rewind
+    boolean matches(byte[] values) {
+        return Arrays.equals(V, values);
+    }
+
+    void save(ByteBuffer out) {
+        out.put(V);
     }
 
-    public void apply(int index, IntUnaryOperator func) {
-        V[index] = func.applyAsInt(V[index]);
+    void restore(ByteBuffer in) {
+        in.get(V);
     }
 }
@@ -0,0 +1,414 @@
+package se.andolf;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * History of the last frames of a machine kept within a fixed number of bytes. {@link #record()} is
+ * called after every frame and stores what changed since the previous call as the old values, so
+ * {@link #stepBack()} only has to write them back. When the budget is used up the oldest frames are
+ * dropped.
+ *
+ * <p>A frame is stored as:
+ * <pre>
+ * length           2 bytes
+ * changes          1 byte, a bit per part below that is present because it changed
+ * pc               4 bytes
+ * I                4 bytes
+ * timers           2 bytes, delay and sound
+ * random state     8 bytes
+ * stack            1 byte depth, then 2 bytes per return address
+ * registers        2 byte mask of changed registers, then their old values
+ * display          4 byte mask of changed rows, then their old values
+ * memory           2 byte run count, then per run: address (2), length - 1 (1) and the old bytes
+ * length           2 bytes, so frames can be walked from either end
+ * </pre>
+ * A frame where nothing changed takes 5 bytes. Only the rows the frame buffer reports as changed and
+ * the 64 byte blocks of memory written to since the last frame, which a memory listener keeps track
+ * of, are compared. Recording a frame that did not draw or write memory is a handful of compares.
+ */
+public class Rewind implements MemoryListener {
+
+    // memory is compared in blocks of 64 bytes, a long has a bit for every block
+    private static final int BLOCK_SHIFT = 6;
+    private static final int BLOCK_SIZE = 1 << BLOCK_SHIFT;
+    private static final int BLOCKS = Memory.SIZE >>> BLOCK_SHIFT;
+
+    private static final int PC = 1;
+    private static final int INDEX = 1 << 1;
+    private static final int TIMERS = 1 << 2;
+    private static final int RANDOM = 1 << 3;
+    private static final int STACK = 1 << 4;
+    private static final int REGISTERS = 1 << 5;
+    private static final int DISPLAY = 1 << 6;
+    private static final int MEMORY = 1 << 7;
+    // 4 KB of single byte runs and the cpu, register and display blocks with a full stack
+    private static final int MAX_FRAME_SIZE = Memory.SIZE * 4 + 1024;
+    // both lengths and the change byte of a frame where nothing changed
+    static final int MIN_FRAME_SIZE = 2 + 1 + 2;
+
+    private final Machine machine;
+    private final byte[] ring;
+
+    // state as of the last recorded frame
+    private int pc;
+    private int index;
+    private int delayTimer;
+    private int soundTimer;
+    private long random;
+    private final int[] stack = new int[CPU.MAX_STACK_DEPTH];
+    private int sp;
+    private final byte[] registers = new byte[16];
+    private final long[] rows = new long[FrameBuffer.HEIGHT];
+    private final byte[] memory = new byte[Memory.SIZE];
+    private final byte[] block = new byte[BLOCK_SIZE];
+    private final ByteBuffer frame = ByteBuffer.allocate(MAX_FRAME_SIZE);
+    private long dirtyBlocks;
+
+    private int start;
+    private int end;
+    private int used;
+    private int frames;
+
+    /**
+     * A frame that does not fit in the whole budget clears the history instead of being kept, so a
+     * small budget only holds frames that changed little.
+     *
+     * @throws IllegalArgumentException if budget can not hold a frame where nothing changed
+     */
+    public Rewind(Machine machine, int budget) {
+        if (budget < MIN_FRAME_SIZE) {
+            throw new IllegalArgumentException("A budget of " + budget + " bytes can not hold the smallest frame of " + MIN_FRAME_SIZE + " bytes");
+        }
+        this.machine = machine;
+        this.ring = new byte[budget];
+
+        final CPU cpu = machine.getCPU();
+        pc = cpu.getPC();
+        index = cpu.getI();
+        delayTimer = cpu.getDelayTimer();
+        soundTimer = cpu.getSoundTimer();
+        random = cpu.getRandomState();
+        sp = cpu.getSP();
+        for (int i = 0; i < sp; i++) {
+            stack[i] = cpu.getReturnAddress(i);
+        }
+        for (int i = 0; i < registers.length; i++) {
+            registers[i] = (byte) machine.getRegister().get(i);
+        }
+        for (int y = 0; y < rows.length; y++) {
+            rows[y] = machine.getFrameBuffer().getRow(y);
+        }
+        machine.getFrameBuffer().takeChangedRows();
+        machine.getMemory().read(0, memory, 0, Memory.SIZE);
+        machine.getMemory().addListener(this);
+    }
+
+    /**
+     * Stops tracking memory writes, the history can not be recorded to after this.
+     */
+    public void close() {
+        machine.getMemory().removeListener(this);
+    }
+
+    @Override
+    public void onWrite(int address, int length) {
+        if (length >= Memory.SIZE) {
+            dirtyBlocks = -1L;
+            return;
+        }
+        final int first = (address & (Memory.SIZE - 1)) >>> BLOCK_SHIFT;
+        final int last = ((address + length - 1) & (Memory.SIZE - 1)) >>> BLOCK_SHIFT;
+        for (int block = first; ; block = (block + 1) & (BLOCKS - 1)) {
+            dirtyBlocks |= 1L << block;
+            if (block == last) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Stores the changes since the last call, or since the rewind was created.
+     */
+    public void record() {
+        frame.clear();
+        frame.putChar((char) 0);
+        frame.put((byte) 0);
+        int changes = 0;
+
+        final CPU cpu = machine.getCPU();
+        if (cpu.getPC() != pc) {
+            frame.putInt(pc);
+            pc = cpu.getPC();
+            changes |= PC;
+        }
+        if (cpu.getI() != index) {
+            frame.putInt(index);
+            index = cpu.getI();
+            changes |= INDEX;
+        }
+        if (cpu.getDelayTimer() != delayTimer || cpu.getSoundTimer() != soundTimer) {
+            frame.put((byte) delayTimer);
+            frame.put((byte) soundTimer);
+            delayTimer = cpu.getDelayTimer();
+            soundTimer = cpu.getSoundTimer();
+            changes |= TIMERS;
+        }
+        if (cpu.getRandomState() != random) {
+            frame.putLong(random);
+            random = cpu.getRandomState();
+            changes |= RANDOM;
+        }
+        if (stackChanged(cpu)) {
+            frame.put((byte) sp);
+            for (int i = 0; i < sp; i++) {
+                frame.putChar((char) stack[i]);
+            }
+            sp = cpu.getSP();
+            for (int i = 0; i < sp; i++) {
+                stack[i] = cpu.getReturnAddress(i);
+            }
+            changes |= STACK;
+        }
+
+        final Register register = machine.getRegister();
+        if (!register.matches(registers)) {
+            int changedRegisters = 0;
+            for (int i = 0; i < registers.length; i++) {
+                if (register.get(i) != (registers[i] & 0xFF)) {
+                    changedRegisters |= 1 << i;
+                }
+            }
+            frame.putChar((char) changedRegisters);
+            for (int i = 0; i < registers.length; i++) {
+                if ((changedRegisters & 1 << i) != 0) {
+                    frame.put(registers[i]);
+                    registers[i] = (byte) register.get(i);
+                }
+            }
+            changes |= REGISTERS;
+        }
+
+        final FrameBuffer frameBuffer = machine.getFrameBuffer();
+        int dirtyRows = frameBuffer.takeChangedRows();
+        if (dirtyRows != 0) {
+            final int rowMask = frame.position();
+            frame.putInt(0);
+            int changedRows = 0;
+            while (dirtyRows != 0) {
+                final int y = Integer.numberOfTrailingZeros(dirtyRows);
+                dirtyRows &= dirtyRows - 1;
+                final long row = frameBuffer.getRow(y);
+                if (row != rows[y]) {
+                    frame.putLong(rows[y]);
+                    rows[y] = row;
+                    changedRows |= 1 << y;
+                }
+            }
+            if (changedRows != 0) {
+                frame.putInt(rowMask, changedRows);
+                changes |= DISPLAY;
+            } else {
+                frame.position(rowMask);
+            }
+        }
+
+        if (dirtyBlocks != 0) {
+            final int runCount = frame.position();
+            frame.putChar((char) 0);
+            int runs = 0;
+            while (dirtyBlocks != 0) {
+                final int dirty = Long.numberOfTrailingZeros(dirtyBlocks);
+                dirtyBlocks &= dirtyBlocks - 1;
+                runs += recordBlock(dirty);
+            }
+            if (runs != 0) {
+                frame.putChar(runCount, (char) runs);
+                changes |= MEMORY;
+            } else {
+                frame.position(runCount);
+            }
+        }
+
+        frame.put(2, (byte) changes);
+        frame.putChar(0, (char) (frame.position() + 2));
+        frame.putChar((char) (frame.position() + 2));
+        append();
+    }
+
+    private boolean stackChanged(CPU cpu) {
+        if (cpu.getSP() != sp) {
+            return true;
+        }
+        for (int i = 0; i < sp; i++) {
+            if (cpu.getReturnAddress(i) != stack[i]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // stores runs of changed bytes in a block as their old values
+    private int recordBlock(int index) {
+        final int base = index << BLOCK_SHIFT;
+        machine.getMemory().read(base, block, 0, BLOCK_SIZE);
+
+        int runs = 0;
+        int i = 0;
+        while (i < BLOCK_SIZE) {
+            final int mismatch = Arrays.mismatch(block, i, BLOCK_SIZE, memory, base + i, base + BLOCK_SIZE);
+            if (mismatch < 0) {
+                break;
+            }
+            i += mismatch;
+            int length = 1;
+            while (i + length < BLOCK_SIZE && block[i + length] != memory[base + i + length]) {
+                length++;
+            }
+            frame.putChar((char) (base + i));
+            frame.put((byte) (length - 1));
+            frame.put(memory, base + i, length);
+            System.arraycopy(block, i, memory, base + i, length);
+            runs++;
+            i += length;
+        }
+        return runs;
+    }
+
+    private void append() {
+        final int length = frame.position();
+        if (length > ring.length) {
+            clear();
+            return;
+        }
+        while (used + length > ring.length) {
+            final int oldest = (ring[start] & 0xFF) << 8 | ring[wrap(start + 1)] & 0xFF;
+            start = wrap(start + oldest);
+            used -= oldest;
+            frames--;
+        }
+
+        final int head = Math.min(length, ring.length - end);
+        System.arraycopy(frame.array(), 0, ring, end, head);
+        if (head < length) {
+            System.arraycopy(frame.array(), head, ring, 0, length - head);
+        }
+        end = wrap(end + length);
+        used += length;
+        frames++;
+    }
+
+    // positions are never more than one lap past the end, so this is cheaper than a remainder
+    private int wrap(int position) {
+        if (position >= ring.length) {
+            return position - ring.length;
+        }
+        return position < 0 ? position + ring.length : position;
+    }
+
+    /**
+     * Puts the machine back to the state it had one recorded frame earlier.
+     *
+     * @return false if there is no earlier frame left
+     */
+    public boolean stepBack() {
+        if (frames == 0) {
+            return false;
+        }
+
+        final int last = wrap(end - 2);
+        final int length = (ring[last] & 0xFF) << 8 | ring[wrap(last + 1)] & 0xFF;
+        final int first = wrap(end - length);
+        final int head = Math.min(length, ring.length - first);
+        System.arraycopy(ring, first, frame.array(), 0, head);
+        System.arraycopy(ring, 0, frame.array(), head, length - head);
+        end = first;
+        used -= length;
+        frames--;
+
+        frame.clear();
+        frame.position(2);
+        final int changes = frame.get() & 0xFF;
+
+        if ((changes & PC) != 0) {
+            pc = frame.getInt();
+        }
+        if ((changes & INDEX) != 0) {
+            index = frame.getInt();
+        }
+        if ((changes & TIMERS) != 0) {
+            delayTimer = frame.get() & 0xFF;
+            soundTimer = frame.get() & 0xFF;
+        }
+        if ((changes & RANDOM) != 0) {
+            random = frame.getLong();
+        }
+        if ((changes & STACK) != 0) {
+            sp = frame.get() & 0xFF;
+            for (int i = 0; i < sp; i++) {
+                stack[i] = frame.getChar();
+            }
+        }
+        machine.getCPU().setState(pc, index, delayTimer, soundTimer, random, stack, sp);
+
+        if ((changes & REGISTERS) != 0) {
+            final Register register = machine.getRegister();
+            final int changedRegisters = frame.getChar();
+            for (int i = 0; i < registers.length; i++) {
+                if ((changedRegisters & 1 << i) != 0) {
+                    registers[i] = frame.get();
+                    register.set(i, registers[i]);
+                }
+            }
+        }
+
+        final FrameBuffer frameBuffer = machine.getFrameBuffer();
+        if ((changes & DISPLAY) != 0) {
+            final int changedRows = frame.getInt();
+            for (int y = 0; y < rows.length; y++) {
+                if ((changedRows & 1 << y) != 0) {
+                    rows[y] = frame.getLong();
+                    frameBuffer.setRow(y, rows[y]);
+                }
+            }
+        }
+        // the rows were set back to what is already recorded
+        frameBuffer.takeChangedRows();
+
+        if ((changes & MEMORY) != 0) {
+            final Memory memory = machine.getMemory();
+            final int runs = frame.getChar();
+            for (int run = 0; run < runs; run++) {
+                final int address = frame.getChar();
+                final int count = (frame.get() & 0xFF) + 1;
+                frame.get(this.memory, address, count);
+                memory.write(address, this.memory, address, count);
+            }
+        }
+        // the blocks were written back to what is already recorded
+        dirtyBlocks = 0;
+        return true;
+    }
+
+    public void clear() {
+        start = 0;
+        end = 0;
+        used = 0;
+        frames = 0;
+    }
+
+    /**
+     * The number of frames that can be stepped back.
+     */
+    public int getFrames() {
+        return frames;
+    }
+
+    public int getUsedBytes() {
+        return used;
+    }
+
+    public int getBudget() {
+        return ring.length;
+    }
+}
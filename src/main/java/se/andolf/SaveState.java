@@ -0,0 +1,90 @@
+package se.andolf;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Saves and restores everything a running rom can observe, in a fixed big endian layout:
+ * <pre>
+ * magic          4 bytes   "C8ST"
+ * version        1 byte
+ * pc             4 bytes
+ * I              4 bytes
+ * delay timer    1 byte
+ * sound timer    1 byte
+ * random state   8 bytes
+ * stack depth    1 byte, followed by 2 bytes per return address, oldest first
+ * V0 - VF       16 bytes
+ * memory      4096 bytes
+ * display      256 bytes, one long per row, bit 63 is x = 0
+ * </pre>
+ * That is 4392 bytes plus 2 per return address. Held keys are input and not part of the state.
+ * Version 1 had no random state.
+ */
+public final class SaveState {
+
+    public static final int VERSION = 2;
+
+    private static final int MAGIC = 'C' << 24 | '8' << 16 | 'S' << 8 | 'T';
+    private static final int HEADER_SIZE = 4 + 1;
+    // registers, memory and display
+    private static final int BODY_SIZE = 16 + Memory.SIZE + FrameBuffer.HEIGHT * Long.BYTES;
+
+    private SaveState() {
+    }
+
+    public static int size(Machine machine) {
+        return HEADER_SIZE + machine.getCPU().savedSize() + BODY_SIZE;
+    }
+
+    public static byte[] save(Machine machine) {
+        final byte[] state = new byte[size(machine)];
+        save(machine, ByteBuffer.wrap(state));
+        return state;
+    }
+
+    /**
+     * Writes the state at the position of out, which needs {@link #size(Machine)} bytes remaining.
+     */
+    public static void save(Machine machine, ByteBuffer out) {
+        out.putInt(MAGIC);
+        out.put((byte) VERSION);
+        machine.getCPU().save(out);
+        machine.getRegister().save(out);
+        machine.getMemory().save(out);
+        machine.getFrameBuffer().save(out);
+    }
+
+    public static void restore(Machine machine, byte[] state) {
+        restore(machine, ByteBuffer.wrap(state));
+    }
+
+    /**
+     * Reads a state written by {@link #save(Machine, ByteBuffer)} from the position of in. The state is
+     * checked before anything is restored, so the machine is unchanged when this throws.
+     *
+     * @throws IllegalArgumentException if in does not hold a complete state of this version
+     */
+    public static void restore(Machine machine, ByteBuffer in) {
+        if (in.remaining() < HEADER_SIZE + CPU.savedSize(0)) {
+            throw new IllegalArgumentException("Truncated save state");
+        }
+        if (in.getInt() != MAGIC) {
+            throw new IllegalArgumentException("Not a save state");
+        }
+        final int version = in.get() & 0xFF;
+        if (version != VERSION) {
+            throw new IllegalArgumentException("Unsupported save state version " + version + ", expected " + VERSION);
+        }
+        final int depth = in.get(in.position() + CPU.SAVED_DEPTH_OFFSET) & 0xFF;
+        if (depth > machine.getCPU().getStackDepth()) {
+            throw new IllegalArgumentException("A stack of " + depth + " return addresses does not fit in " + machine.getCPU().getStackDepth());
+        }
+        if (in.remaining() < CPU.savedSize(depth) + BODY_SIZE) {
+            throw new IllegalArgumentException("Truncated save state");
+        }
+        machine.getCPU().restore(in);
+        machine.getRegister().restore(in);
+        machine.getMemory().restore(in);
+        machine.getFrameBuffer().restore(in);
+    }
+}
@@ -2,61 +2,95 @@ package se.andolf;
 
 import java.awt.*;
 import java.awt.image.BufferStrategy;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
 
+/**
+ * Renders the framebuffer into a 64x32 image and presents it with a single blit scaled to the size of the canvas.
+ */
 public class Screen extends Canvas {
 
-    private final int width, height, scale;
-    private final int[][] pixels;
+    private static final int WHITE = 0xFFFFFF;
+    private static final int BLACK = 0x000000;
 
-    public Screen(int width, int height, int scale) {
-        this.width = width;
-        this.height = height;
-        this.scale = scale;
-        pixels = new int[this.width][this.height];
-        clear();
+    private final FrameBuffer frameBuffer;
+    private final BufferedImage image;
+    private final int[] pixels;
 
-        setPreferredSize(new Dimension(this.width * this.scale, this.height * this.scale));
-    }
+    private volatile boolean repaintRequested = true;
 
-    public void clear() {
-        for (int y = 0; y < this.height; y++) {
-            for (int x = 0; x < this.width; x++) {
-                pixels[x][y] = 0;
-            }
-        }
+    public Screen(FrameBuffer frameBuffer, int scale) {
+        this.frameBuffer = frameBuffer;
+        this.image = new BufferedImage(frameBuffer.getWidth(), frameBuffer.getHeight(), BufferedImage.TYPE_INT_RGB);
+        this.pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+
+        setPreferredSize(new Dimension(frameBuffer.getWidth() * scale, frameBuffer.getHeight() * scale));
     }
 
-    public void render() {
+    /**
+     * @return true if a frame was shown
+     */
+    public boolean render() {
 
         final BufferStrategy bs = getBufferStrategy();
         if(bs == null) {
             createBufferStrategy(3);
-            return;
+            return false;
         }
 
-        final Graphics gc = bs.getDrawGraphics();
+        final int rows = frameBuffer.takeDirtyRows();
+        if (rows == 0 && !repaintRequested) {
+            return false;
+        }
+        repaintRequested = false;
+
+        update(rows);
 
-        for(int y = 0; y < this.height; y++) {
-            for(int x = 0; x < this.width; x++) {
-                if (pixels[x][y] == 1) {
-                    gc.setColor(Color.WHITE);
-                } else {
-                    gc.setColor(Color.BLACK);
-                }
+        do {
+            do {
+                final Graphics gc = bs.getDrawGraphics();
+                present(gc, getWidth(), getHeight());
+                gc.dispose();
+            } while (bs.contentsRestored());
 
-                gc.fillRect(x * scale, y * scale, scale, scale);
+            bs.show();
+        } while (bs.contentsLost());
+        return true;
+    }
+
+    /**
+     * Copies the rows set in the rows mask from the framebuffer into the image, bit y is row y.
+     */
+    public void update(int rows) {
+        for (int y = 0; y < frameBuffer.getHeight(); y++) {
+            if ((rows & (1 << y)) == 0) {
+                continue;
+            }
+
+            final long row = frameBuffer.getRow(y);
+            final int offset = y * frameBuffer.getWidth();
+            for (int x = 0; x < frameBuffer.getWidth(); x++) {
+                pixels[offset + x] = (row << x) < 0 ? WHITE : BLACK;
             }
         }
+    }
+
+    public void present(Graphics gc, int width, int height) {
+        gc.drawImage(image, 0, 0, width, height, null);
+    }
 
-        gc.dispose();
-        bs.show();
+    public boolean isRepaintRequested() {
+        return repaintRequested;
     }
 
-    public void setPixel(int xCoord, int yCoord) {
-        pixels[xCoord][yCoord] ^= 1;
+    @Override
+    public void paint(Graphics g) {
+        // the window was exposed or resized, present the image again
+        repaintRequested = true;
     }
 
-    public int getPixel(int xCoord, int yCoord) {
-        return pixels[xCoord][yCoord];
+    @Override
+    public void update(Graphics g) {
+        paint(g);
     }
 }
@@ -0,0 +1,43 @@
+package se.andolf;
+
+/**
+ * SplitMix64, a 64 bit counter passed through a mixing function. Any seed, including 0, gives a
+ * full period sequence, and nearby seeds give unrelated sequences.
+ */
+public final class SplitMix implements RandomSource {
+
+    static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+
+    private long state;
+
+    public SplitMix(long seed) {
+        this.state = seed;
+    }
+
+    public long nextLong() {
+        state += GOLDEN_GAMMA;
+        return mix(state);
+    }
+
+    static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    // the top bits are the best mixed
+    @Override
+    public int nextByte() {
+        return (int) (nextLong() >>> 56);
+    }
+
+    @Override
+    public long getState() {
+        return state;
+    }
+
+    @Override
+    public void setState(long state) {
+        this.state = state;
+    }
+}
@@ -0,0 +1,38 @@
+package se.andolf;
+
+/**
+ * Thrown by 2NNN with a full call stack and by 00EE with an empty one. The instruction has no effect,
+ * the program counter still points at it.
+ */
+public class StackFault extends RuntimeException {
+
+    public enum Kind {
+        OVERFLOW,
+        UNDERFLOW
+    }
+
+    private final Kind kind;
+    private final int pc;
+
+    public StackFault(Kind kind, int pc) {
+        this(kind, pc, null);
+    }
+
+    /**
+     * @param where appended to the message when not null, for example which of several machines faulted
+     */
+    public StackFault(Kind kind, int pc, String where) {
+        super((kind == Kind.OVERFLOW ? "Call with a full stack" : "Return with an empty stack")
+                + " at " + Integer.toHexString(pc) + (where == null ? "" : " " + where));
+        this.kind = kind;
+        this.pc = pc;
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public int getPC() {
+        return pc;
+    }
+}
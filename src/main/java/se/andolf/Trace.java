@@ -0,0 +1,88 @@
+package se.andolf;
+
+import java.io.PrintStream;
+
+/**
+ * Fixed size ring buffer of executed instructions. Each record holds pc, opcode, I and V0-VF
+ * as primitives so recording never allocates. The capacity is rounded up to a power of two and only
+ * the latest {@code capacity} records are kept.
+ */
+public class Trace {
+
+    private static final int PC = 0;
+    private static final int OPCODE = 1;
+    private static final int INDEX = 2;
+    private static final int V0 = 3;
+    private static final int RECORD_SIZE = V0 + 16;
+
+    private final int[] records;
+    private final int capacity;
+    private final int mask;
+    private int next;
+    private long count;
+
+    public Trace(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Trace capacity must be positive, was: " + capacity);
+        }
+        this.capacity = Math.max(1, Integer.highestOneBit(capacity - 1) << 1);
+        this.mask = this.capacity - 1;
+        this.records = new int[this.capacity * RECORD_SIZE];
+    }
+
+    public void record(int pc, int opcode, int I, Register register) {
+        final int offset = next * RECORD_SIZE;
+        records[offset + PC] = pc;
+        records[offset + OPCODE] = opcode;
+        records[offset + INDEX] = I;
+        for (int i = 0; i < 16; i++) {
+            records[offset + V0 + i] = register.get(i);
+        }
+        next = (next + 1) & mask;
+        count++;
+    }
+
+    public int size() {
+        return (int) Math.min(count, capacity);
+    }
+
+    public int getPC(int record) {
+        return records[offset(record) + PC];
+    }
+
+    public int getOpcode(int record) {
+        return records[offset(record) + OPCODE];
+    }
+
+    public int getI(int record) {
+        return records[offset(record) + INDEX];
+    }
+
+    public int getV(int record, int index) {
+        return records[offset(record) + V0 + index];
+    }
+
+    public void dump(PrintStream out) {
+        for (int record = 0; record < size(); record++) {
+            final StringBuilder sb = new StringBuilder();
+            sb.append(String.format("pc=%03X op=%04X I=%03X", getPC(record), getOpcode(record), getI(record)));
+            for (int i = 0; i < 16; i++) {
+                sb.append(String.format(" V%X=%02X", i, getV(record, i)));
+            }
+            out.println(sb);
+        }
+    }
+
+    public void clear() {
+        next = 0;
+        count = 0;
+    }
+
+    // record 0 is the oldest record still in the buffer
+    private int offset(int record) {
+        if (record < 0 || record >= size()) {
+            throw new IndexOutOfBoundsException("Record " + record + " outside of trace of size " + size());
+        }
+        return ((next - size() + record) & mask) * RECORD_SIZE;
+    }
+}
@@ -4,11 +4,32 @@ import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Test;
 
-import java.util.Random;
+import com.sun.management.ThreadMXBean;
+import se.andolf.utils.Utils;
+
+import java.awt.event.KeyEvent;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+import javax.management.openmbean.TabularData;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
-import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
@@ -17,14 +38,16 @@ class emulatorTest {
     private CPU cpu;
     private Memory memory;
     private Register register;
-    private Random random;
+    private FrameBuffer frameBuffer;
+    private RandomSource random;
 
     @BeforeEach
     void beforeEach() {
         memory = new Memory();
         register = new Register();
-        random = mock(Random.class);
-        cpu = new CPU(memory, register, random, null, null);
+        frameBuffer = new FrameBuffer();
+        random = mock(RandomSource.class);
+        cpu = new CPU(memory, register, random, null, frameBuffer);
     }
 
     @DisplayName("code 1XXX jumps to address NNN")
@@ -383,7 +406,7 @@ class emulatorTest {
 
         byte[] data = { -0x40, 0x07 };
 
-        when(random.nextInt(anyInt())).thenReturn(85);
+        when(random.nextByte()).thenReturn(85);
 
         memory.loadData(data);
         emulate(data);
@@ -445,6 +468,711 @@ class emulatorTest {
 
     }
 
+    @DisplayName("Delay and sound timers count down once per tick and stop at zero")
+    @Test
+    void shouldCountDownTimersOncePerTick() {
+
+        byte[] data = { 0x60, 0x02, -0x10, 0x15, 0x61, 0x01, -0x0F, 0x18 };
+
+        memory.loadData(data);
+        emulate(data);
+
+        cpu.tickTimers();
+        assertEquals(1, cpu.getDelayTimer());
+        assertEquals(0, cpu.getSoundTimer());
+
+        cpu.tickTimers();
+        cpu.tickTimers();
+        assertEquals(0, cpu.getDelayTimer());
+        assertEquals(0, cpu.getSoundTimer());
+    }
+
+    @DisplayName("A loop polling the delay timer is reported as idle until the timer expires")
+    @Test
+    void shouldReportDelayTimerPollingLoopAsIdle() {
+
+        // V0 = 2, delay = V0, loop: V0 = delay, skip if V0 == 0, jump back to loop
+        byte[] data = { 0x60, 0x02, -0x10, 0x15, -0x10, 0x07, 0x30, 0x00, 0x12, 0x04 };
+
+        memory.loadData(data);
+        emulate(data);
+
+        assertTrue(cpu.isIdle());
+        assertEquals(0x204, cpu.getPC());
+
+        cpu.setIdle(false);
+        cpu.tickTimers();
+        cpu.tickTimers();
+        cpu.emulateCycle();
+        cpu.emulateCycle();
+
+        assertFalse(cpu.isIdle());
+        assertEquals(0x20A, cpu.getPC());
+    }
+
+    @DisplayName("code FX55 stores V0 to VX from I and FX65 loads them back")
+    @Test
+    void shouldTestOpcodeFX55AndFX65StoreAndLoadRegisters() {
+
+        byte[] data = { 0x60, 0x01, 0x61, -0x01, -0x5E, 0x00, -0x0F, 0x55, 0x60, 0x00, 0x61, 0x00, -0x0F, 0x65 };
+
+        memory.loadData(data);
+        emulate(data);
+
+        assertEquals(1, memory.getByte(0x200));
+        assertEquals(255, memory.getByte(0x201));
+        assertEquals(1, register.get(0));
+        assertEquals(255, register.get(1));
+        assertEquals(0x200, cpu.getI());
+    }
+
+    @DisplayName("Memory addresses wrap around at 4KB")
+    @Test
+    void shouldWrapMemoryAddressesAt4KB() {
+
+        memory.setByte(0x1000, 0x12);
+        memory.setByte(0xFFF, 0x34);
+
+        assertEquals(0x12, memory.getByte(0));
+        assertEquals(0x3412, memory.getOpcode(0xFFF));
+    }
+
+    @DisplayName("code DXYN draws a sprite wrapping around the edges and sets VF on collision")
+    @Test
+    void shouldTestOpcodeDXYNDrawWrappingSpriteAndDetectCollision() {
+
+        byte[] data = { 0x60, 0x3E, 0x61, 0x1F, -0x60, 0x00, -0x30, 0x11, -0x30, 0x11 };
+
+        memory.loadData(data);
+        for (int i = 0; i < 4; i++) {
+            cpu.emulateCycle();
+        }
+
+        assertEquals(0, register.get(0xF));
+        assertEquals(1, frameBuffer.getPixel(62, 31));
+        assertEquals(1, frameBuffer.getPixel(63, 31));
+        assertEquals(1, frameBuffer.getPixel(0, 31));
+        assertEquals(1, frameBuffer.getPixel(1, 31));
+        assertEquals(0, frameBuffer.getPixel(2, 31));
+
+        cpu.emulateCycle();
+
+        assertEquals(1, register.get(0xF));
+        assertEquals(0, frameBuffer.getRow(31));
+    }
+
+    @DisplayName("Compiled blocks are recompiled when a rom writes over its own code")
+    @Test
+    void shouldRecompileBlocksOverwrittenBySelfModifyingCode() {
+
+        // calls 0x206 setting V2 = 1, overwrites it with V2 = 7 using FX55 and calls it again
+        byte[] data = { 0x22, 0x06, 0x12, 0x0E, 0x00, 0x00, 0x62, 0x01, 0x00, -0x12, 0x00, 0x00, 0x00, 0x00,
+                -0x5E, 0x06, 0x60, 0x62, 0x61, 0x07, -0x0F, 0x55, 0x22, 0x06, 0x12, 0x18 };
+
+        memory.loadData(data);
+        final Jit jit = new Jit(cpu, memory);
+
+        while (cpu.getPC() != 0x218) {
+            jit.step();
+        }
+
+        assertEquals(7, register.get(2));
+        assertEquals(1, jit.getInvalidations());
+    }
+
+    @DisplayName("Decoded instructions are dropped when a rom writes over its own code")
+    @Test
+    void shouldDecodeAgainAfterSelfModifyingWrite() {
+
+        // calls 0x206 setting V2 = 1, overwrites it with V2 = 7 using FX55 and calls it again
+        byte[] data = { 0x22, 0x06, 0x12, 0x0E, 0x00, 0x00, 0x62, 0x01, 0x00, -0x12, 0x00, 0x00, 0x00, 0x00,
+                -0x5E, 0x06, 0x60, 0x62, 0x61, 0x07, -0x0F, 0x55, 0x22, 0x06, 0x12, 0x18 };
+
+        memory.loadData(data);
+        final DecodeCache decodeCache = new DecodeCache(memory);
+        cpu.setDecodeCache(decodeCache);
+
+        while (cpu.getPC() != 0x218) {
+            cpu.emulateCycle();
+        }
+
+        assertEquals(7, register.get(2));
+        assertEquals(1, decodeCache.getInvalidations());
+        assertEquals(1, decodeCache.getHits());
+    }
+
+    @DisplayName("A batch runs every machine to its own halt reason")
+    @Test
+    void shouldCollectResultsForEveryMachineInABatch() throws InterruptedException {
+
+        final byte[] halts = { 0x60, 0x05, 0x12, 0x02 };
+        final byte[] unknown = { 0x00, 0x00 };
+        final byte[] faults = { 0x00, -0x12 };
+        final byte[] loops = { 0x70, 0x01, 0x12, 0x00 };
+
+        final ForkJoinPool pool = Batch.newPool(2);
+        final List<Batch.Result> results = new Batch(pool, 10, 7).run(Arrays.asList(halts, unknown, faults, loops), 100, 0);
+        pool.shutdown();
+
+        assertEquals(Batch.HaltReason.HALTED, results.get(0).getHaltReason());
+        assertEquals(2, results.get(0).getCycles());
+        assertEquals(Batch.HaltReason.UNKNOWN_OPCODE, results.get(1).getHaltReason());
+        assertEquals(Batch.HaltReason.STACK_FAULT, results.get(2).getHaltReason());
+        assertEquals("Return with an empty stack at 200", results.get(2).getFault());
+        assertEquals(Batch.HaltReason.FRAME_LIMIT, results.get(3).getHaltReason());
+        assertEquals(100, results.get(3).getFrames());
+        assertEquals(1000, results.get(3).getCycles());
+    }
+
+    @DisplayName("Lockstep runs 5XY1 as 5XY0 like a machine does")
+    @Test
+    void shouldRunLockstep5XYNLikeMachine() {
+
+        // V0 = 5, V1 = 5, 5011 skips V2 = 7, V3 = 9, jumps to itself
+        byte[] data = { 0x60, 0x05, 0x61, 0x05, 0x50, 0x11, 0x62, 0x07, 0x63, 0x09, 0x12, 0x0A };
+
+        final Lockstep lockstep = new Lockstep(data, 2, 7);
+        final Machine machine = new Machine(data, new SplitMix(7));
+        assertEquals(machine.runFrame(10) * 2, lockstep.runFrame(10));
+
+        for (int lane = 0; lane < 2; lane++) {
+            assertEquals(0x20A, lockstep.getPC(lane));
+            assertEquals(machine.getCPU().getPC(), lockstep.getPC(lane));
+            for (int x = 0; x < 4; x++) {
+                assertEquals(machine.getRegister().get(x), lockstep.getRegister(lane, x));
+            }
+        }
+        assertEquals(0, lockstep.getRegister(0, 2));
+        assertEquals(9, lockstep.getRegister(0, 3));
+    }
+
+    @DisplayName("Every lane of a lockstep run matches a machine with the same seed")
+    @Test
+    void shouldRunLockstepLanesLikeSeparateMachines() {
+
+        for (String name : new String[] { "BRIX", "INVADERS", "TETRIS", "UFO" }) {
+            final byte[] rom = Utils.load("/roms/" + name + ".ch8").orElseThrow();
+            final Lockstep lockstep = new Lockstep(rom, 4, 7);
+            final Machine[] machines = new Machine[4];
+            for (int lane = 0; lane < machines.length; lane++) {
+                machines[lane] = new Machine(rom, new SplitMix(7 + lane));
+            }
+
+            for (int frame = 0; frame < 600; frame++) {
+                // lane 3 holds key 4 for a while, so not every lane takes the same path
+                if (frame == 60) {
+                    lockstep.press(3, 4);
+                    machines[3].getKeyboard().press(4);
+                } else if (frame == 90) {
+                    lockstep.release(3, 4);
+                    machines[3].getKeyboard().release(4);
+                }
+
+                int executed = 0;
+                for (Machine machine : machines) {
+                    executed += machine.runFrame(20);
+                }
+                assertEquals(executed, lockstep.runFrame(20), name);
+            }
+
+            for (int lane = 0; lane < machines.length; lane++) {
+                final CPU expected = machines[lane].getCPU();
+                assertEquals(expected.getPC(), lockstep.getPC(lane), name);
+                assertEquals(expected.getI(), lockstep.getI(lane), name);
+                assertEquals(expected.getDelayTimer(), lockstep.getDelayTimer(lane), name);
+                assertEquals(machines[lane].getFrameBuffer().hash(), lockstep.frameBufferHash(lane), name);
+                for (int x = 0; x < 16; x++) {
+                    assertEquals(machines[lane].getRegister().get(x), lockstep.getRegister(lane, x), name);
+                }
+            }
+        }
+    }
+
+    @DisplayName("A restored save state holds exactly what was saved")
+    @Test
+    void shouldRestoreSavedState() {
+
+        // calls 0x206 which draws the font sprite for V0 and then waits in a jump to itself
+        byte[] data = { 0x22, 0x06, 0x12, 0x04, 0x12, 0x04, 0x60, 0x07, -0x10, 0x29, -0x2F, 0x15, 0x12, 0x0C };
+
+        final Machine machine = new Machine(data, random);
+        machine.getCPU().setDelayTimer(30);
+        machine.runFrame(10);
+
+        final byte[] state = SaveState.save(machine);
+        assertEquals(4392 + 2, state.length);
+
+        final Machine other = new Machine(new byte[0], random);
+        SaveState.restore(other, state);
+
+        assertEquals(0x20C, other.getCPU().getPC());
+        assertEquals(7 * 5, other.getCPU().getI());
+        assertEquals(29, other.getCPU().getDelayTimer());
+        assertEquals(7, other.getRegister().get(0));
+        assertEquals(machine.getFrameBuffer().hash(), other.getFrameBuffer().hash());
+        assertEquals(FrameBuffer.ALL_ROWS, other.getFrameBuffer().takeDirtyRows());
+        assertTrue(Arrays.equals(state, SaveState.save(other)));
+    }
+
+    @DisplayName("A save state that can not be restored leaves the machine unchanged")
+    @Test
+    void shouldNotChangeMachineOnInvalidSaveState() {
+
+        // calls 0x202, which calls 0x204, which jumps to itself
+        byte[] data = { 0x22, 0x02, 0x22, 0x04, 0x12, 0x04 };
+
+        final Machine machine = new Machine(data, random);
+        machine.getCPU().setDelayTimer(30);
+        machine.runFrame(3);
+        final byte[] state = SaveState.save(machine);
+
+        final Machine shallow = new Machine(new byte[0], random, 1);
+        final byte[] before = SaveState.save(shallow);
+        assertThrows(IllegalArgumentException.class, () -> SaveState.restore(shallow, state));
+        assertTrue(Arrays.equals(before, SaveState.save(shallow)));
+
+        final Machine other = new Machine(new byte[0], random);
+        assertThrows(IllegalArgumentException.class, () -> SaveState.restore(other, Arrays.copyOf(state, state.length - 1)));
+        assertEquals(Memory.PROGRAM_START, other.getCPU().getPC());
+        assertEquals(0, other.getCPU().getDelayTimer());
+    }
+
+    @DisplayName("A restored save state draws the same random numbers again")
+    @Test
+    void shouldRestoreRandomState() {
+
+        // V0 = rand() & 0xFF, V1 = rand() & 0xFF and waits in a jump to itself
+        byte[] data = { -0x40, -0x01, -0x3F, -0x01, 0x12, 0x04 };
+
+        final Machine machine = new Machine(data, new SplitMix(5));
+        final byte[] state = SaveState.save(machine);
+        machine.runFrame(3);
+
+        final Machine other = new Machine(data, new SplitMix(6));
+        SaveState.restore(other, state);
+        other.runFrame(3);
+
+        assertEquals(machine.getRegister().get(0), other.getRegister().get(0));
+        assertEquals(machine.getRegister().get(1), other.getRegister().get(1));
+        assertTrue(machine.getRegister().get(0) != machine.getRegister().get(1));
+    }
+
+    @DisplayName("A forked machine copies only the memory page it writes to")
+    @Test
+    void shouldCopyMemoryPagesOnWriteAfterFork() {
+
+        // V0 = 9, I = 0x300, stores V0 at 0x300 and waits in a jump to itself
+        byte[] data = { 0x60, 0x09, -0x5D, 0x00, -0x10, 0x55, 0x12, 0x06 };
+
+        final Machine parent = new Machine(data, random);
+        parent.runFrame(1);
+        final Machine child = parent.fork(random);
+
+        assertEquals(Memory.PAGES, child.getMemory().getSharedPages());
+
+        child.runFrame(10);
+
+        assertEquals(9, child.getMemory().getByte(0x300));
+        assertEquals(0, parent.getMemory().getByte(0x300));
+        assertEquals(Memory.PAGES - 1, child.getMemory().getSharedPages());
+        assertEquals(0x206, child.getCPU().getPC());
+        assertEquals(0x202, parent.getCPU().getPC());
+    }
+
+    @DisplayName("Stepping back through recorded frames returns to an earlier state")
+    @Test
+    void shouldRewindToEarlierFrame() {
+
+        final Machine machine = new Machine(Utils.load("/roms/BLINKY.ch8").orElseThrow(), new SplitMix(3));
+        final Rewind rewind = new Rewind(machine, 1 << 20);
+
+        byte[] earlier = null;
+        for (int frame = 0; frame < 300; frame++) {
+            if (frame == 100) {
+                earlier = SaveState.save(machine);
+            }
+            machine.runFrame(20);
+            rewind.record();
+        }
+
+        for (int frame = 0; frame < 200; frame++) {
+            assertTrue(rewind.stepBack());
+        }
+
+        assertTrue(Arrays.equals(earlier, SaveState.save(machine)));
+        assertEquals(100, rewind.getFrames());
+    }
+
+    @DisplayName("The oldest recorded frames are dropped to stay within the budget")
+    @Test
+    void shouldDropOldestFramesOverBudget() {
+
+        final Machine machine = new Machine(Utils.load("/roms/BLINKY.ch8").orElseThrow(), new SplitMix(3));
+        final Rewind rewind = new Rewind(machine, 4096);
+
+        for (int frame = 0; frame < 1000; frame++) {
+            machine.runFrame(20);
+            rewind.record();
+            assertTrue(rewind.getUsedBytes() <= 4096);
+        }
+
+        final int frames = rewind.getFrames();
+        assertTrue(frames > 0 && frames < 1000);
+        for (int frame = 0; frame < frames; frame++) {
+            assertTrue(rewind.stepBack());
+        }
+        assertFalse(rewind.stepBack());
+
+        assertThrows(IllegalArgumentException.class, () -> new Rewind(machine, Rewind.MIN_FRAME_SIZE - 1));
+        // a jump to itself changes nothing, so every frame takes the smallest size
+        final Machine idle = new Machine(new byte[]{ 0x12, 0x00 }, random);
+        final Rewind small = new Rewind(idle, Rewind.MIN_FRAME_SIZE);
+        idle.runFrame(10);
+        small.record();
+        idle.runFrame(10);
+        small.record();
+        assertEquals(1, small.getFrames());
+    }
+
+    @DisplayName("A recorded movie replays to the same framebuffers and detects a diverging replay")
+    @Test
+    void shouldReplayRecordedMovie() throws IOException {
+
+        final byte[] rom = Utils.load("/roms/BRIX.ch8").orElseThrow();
+        final Movie movie = new Movie(rom, 11, 20, false, 30);
+        final Machine machine = new Machine(rom, new SplitMix(11));
+        final KeyScript keyScript = KeyScript.parse("60:+4,90:-4,100:+6,160:-6");
+        for (int frame = 0; frame < 600; frame++) {
+            keyScript.apply(frame, machine.getKeyboard());
+            machine.runFrame(20);
+            movie.record(machine.getKeyboard().getMask(), machine.getFrameBuffer());
+        }
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        movie.write(out);
+        final Movie read = Movie.read(new ByteArrayInputStream(out.toByteArray()));
+
+        assertEquals(600, read.getFrames());
+        assertEquals(20, read.getCheckpoints());
+        assertEquals(0, read.replay(read.newMachine(rom)));
+
+        // a different seed places the ball somewhere else
+        final Machine other = new Machine(rom, new SplitMix(12));
+        assertTrue(read.replay(other) > 0);
+
+        // a header claiming far more frames than follow fails at the end of the data
+        final byte[] corrupt = out.toByteArray();
+        ByteBuffer.wrap(corrupt).putInt(26, Integer.MAX_VALUE);
+        assertThrows(IOException.class, () -> Movie.read(new ByteArrayInputStream(corrupt)));
+    }
+
+    @DisplayName("ALU opcodes do not allocate once warmed up")
+    @Test
+    void shouldNotAllocateWhenExecutingAluOpcodes() {
+
+        byte[] data = { 0x60, 0x05, 0x61, -0x7D, 0x70, 0x01, -0x80, 0x14, -0x80, 0x15, -0x80, 0x11,
+                -0x80, 0x16, -0x80, 0x17, -0x80, 0x1E, 0x12, 0x04 };
+
+        memory.loadData(data);
+
+        final ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        final long threadId = Thread.currentThread().getId();
+
+        for (int i = 0; i < 100_000; i++) {
+            cpu.emulateCycle();
+        }
+
+        final long before = threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < 100_000; i++) {
+            cpu.emulateCycle();
+        }
+        final long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+
+        assertEquals(0, allocated);
+    }
+
+    @DisplayName("Trace records pc, opcode, I and V0-VF as they were before each instruction")
+    @Test
+    void shouldTraceExecutedInstructions() {
+
+        // V0 = 5, I = 0x123, adds 1 to V1, jumps to itself
+        byte[] data = { 0x60, 0x05, -0x5F, 0x23, 0x71, 0x01, 0x12, 0x06 };
+        memory.loadData(data);
+        final Trace trace = new Trace(8);
+        cpu.setTrace(trace);
+
+        emulate(data);
+
+        assertEquals(4, trace.size());
+        assertEquals(0x200, trace.getPC(0));
+        assertEquals(0x6005, trace.getOpcode(0));
+        assertEquals(0, trace.getV(0, 0));
+        assertEquals(0x202, trace.getPC(1));
+        assertEquals(0xA123, trace.getOpcode(1));
+        assertEquals(5, trace.getV(1, 0));
+        assertEquals(0, trace.getI(1));
+        assertEquals(0x7101, trace.getOpcode(2));
+        assertEquals(0x123, trace.getI(2));
+        assertEquals(0, trace.getV(2, 1));
+        assertEquals(1, trace.getV(3, 1));
+        assertEquals(0x1206, trace.getOpcode(3));
+    }
+
+    @DisplayName("Trace rounds its capacity up to a power of two and keeps the latest records oldest first")
+    @Test
+    void shouldKeepLatestTraceRecordsOldestFirst() {
+
+        assertThrows(IllegalArgumentException.class, () -> new Trace(0));
+
+        final Trace trace = new Trace(3);
+        for (int pc = 0; pc < 6; pc++) {
+            register.set(0xF, pc);
+            trace.record(pc, 0x1000 | pc, 0, register);
+        }
+
+        // a capacity of 3 holds 4 records, the first two were written over
+        assertEquals(4, trace.size());
+        for (int record = 0; record < 4; record++) {
+            assertEquals(record + 2, trace.getPC(record));
+            assertEquals(record + 2, trace.getV(record, 0xF));
+        }
+        assertThrows(IndexOutOfBoundsException.class, () -> trace.getPC(4));
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        trace.dump(new PrintStream(out));
+        final String[] lines = out.toString().split("\n");
+        assertEquals(4, lines.length);
+        assertTrue(lines[0].startsWith("pc=002 op=1002 I=000 V0=00"));
+        assertTrue(lines[3].startsWith("pc=005 op=1005"));
+        assertTrue(lines[3].endsWith("VF=05"));
+
+        trace.clear();
+        assertEquals(0, trace.size());
+
+        final Trace single = new Trace(1);
+        single.record(0x200, 0x1200, 0, register);
+        single.record(0x202, 0x1202, 0, register);
+        assertEquals(1, single.size());
+        assertEquals(0x202, single.getPC(0));
+    }
+
+    @DisplayName("A call with a full stack and a return with an empty one fault and leave the pc at the instruction")
+    @Test
+    void shouldFaultOnStackOverflowAndUnderflow() {
+
+        // calls itself
+        byte[] data = { 0x22, 0x00 };
+        memory.loadData(data);
+
+        for (int i = 0; i < CPU.DEFAULT_STACK_DEPTH; i++) {
+            cpu.emulateCycle();
+        }
+        final StackFault overflow = assertThrows(StackFault.class, cpu::emulateCycle);
+
+        assertEquals(StackFault.Kind.OVERFLOW, overflow.getKind());
+        assertEquals(0x200, overflow.getPC());
+        assertEquals(CPU.DEFAULT_STACK_DEPTH, cpu.getSP());
+
+        final Machine machine = new Machine(new byte[]{ 0x00, -0x12 }, random, 4);
+        final StackFault underflow = assertThrows(StackFault.class, () -> machine.runFrame(1));
+
+        assertEquals(StackFault.Kind.UNDERFLOW, underflow.getKind());
+        assertEquals(0x200, machine.getCPU().getPC());
+        assertEquals(4, machine.getCPU().getStackDepth());
+    }
+
+    @DisplayName("Calls and returns do not allocate once warmed up")
+    @Test
+    void shouldNotAllocateWhenCallingSubroutines() {
+
+        // calls 0x204 which returns, then jumps back to the call
+        byte[] data = { 0x22, 0x04, 0x12, 0x00, 0x00, -0x12 };
+
+        memory.loadData(data);
+
+        final ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        final long threadId = Thread.currentThread().getId();
+
+        // the first call to the bean allocates
+        threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < 1_000_000; i++) {
+            cpu.emulateCycle();
+        }
+
+        final long before = threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < 99_999; i++) {
+            cpu.emulateCycle();
+        }
+        final long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+
+        assertEquals(0, allocated);
+    }
+
+    @DisplayName("Mapped key codes set the mask once per press and wake a thread waiting for the edge")
+    @Test
+    void shouldQueueKeyEdgesAndWakeWaitingThread() throws InterruptedException {
+
+        final Keyboard keyboard = new Keyboard();
+        assertEquals(0xC, Keyboard.key(KeyEvent.VK_4));
+        assertEquals(-1, Keyboard.key(KeyEvent.VK_P));
+        assertTrue(keyboard.onKeyPressed(KeyEvent.VK_X));
+        assertFalse(keyboard.onKeyPressed(KeyEvent.VK_X));
+        assertTrue(keyboard.onKeyPressed(KeyEvent.VK_V));
+        assertEquals(1 << 0xF | 1, keyboard.getMask());
+        assertTrue(keyboard.onKeyReleased(KeyEvent.VK_V));
+        assertFalse(keyboard.onKeyReleased(KeyEvent.VK_P));
+        assertEquals(1, keyboard.getMask());
+
+        final KeyEvents events = new KeyEvents();
+        assertNull(events.await(System.nanoTime() + 1_000_000));
+
+        final long start = System.nanoTime();
+        final Thread presser = new Thread(() -> events.add(7, true));
+        presser.start();
+        final KeyEvents.Edge edge = events.await(start + 10_000_000_000L);
+        presser.join();
+
+        assertEquals(7, edge.getKey());
+        assertTrue(edge.isPressed());
+        assertTrue(edge.getNanos() >= start);
+        assertTrue(System.nanoTime() - start < 5_000_000_000L);
+    }
+
+    @DisplayName("Histogram percentiles are within the precision of the recorded values")
+    @Test
+    void shouldReportHistogramPercentiles() {
+
+        final Histogram histogram = new Histogram();
+        for (long value = 1; value <= 100_000; value++) {
+            histogram.record(value * 1000);
+        }
+
+        assertEquals(100_000, histogram.getCount());
+        assertEquals(1000, histogram.getMin());
+        assertEquals(100_000_000, histogram.getMax());
+        assertEquals(100_000_000, histogram.getValueAtPercentile(100));
+        for (double percentile : new double[]{ 1, 50, 90, 99, 99.9 }) {
+            final double expected = percentile * 1_000_000;
+            assertTrue(Math.abs(histogram.getValueAtPercentile(percentile) - expected) < expected / 64);
+        }
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        histogram.exportPercentiles(new PrintStream(out), 1e6, 5);
+        final String[] lines = out.toString().split("\n");
+        assertTrue(lines[0].trim().startsWith("Value"));
+        assertTrue(lines.length > 20);
+        assertTrue(lines[lines.length - 2].contains("Total count =       100000"));
+    }
+
+    @DisplayName("A key press is timed to the first instruction that reads it and to the next frame shown")
+    @Test
+    void shouldMeasureInputLatency() {
+
+        // skips the jump back while key 5 is held, then waits in a jump to itself
+        byte[] data = { 0x60, 0x05, -0x20, -0x62, 0x12, 0x02, 0x12, 0x06 };
+
+        final Machine machine = new Machine(data, random);
+        final InputLatency latency = new InputLatency();
+        machine.getCPU().setInputLatency(latency);
+        machine.runFrame(10);
+
+        final KeyEvents events = new KeyEvents();
+        events.add(5, true);
+        latency.onEdge(events.poll());
+        assertTrue(latency.isWaiting());
+
+        machine.getKeyboard().press(5);
+        machine.runFrame(10);
+        assertFalse(latency.isWaiting());
+        assertEquals(0x206, machine.getCPU().getPC());
+        assertEquals(1, latency.getToObserved().getCount());
+
+        latency.onPresented(System.nanoTime());
+        latency.onPresented(System.nanoTime());
+        assertEquals(1, latency.getToPresented().getCount());
+        assertTrue(latency.getToPresented().getMax() >= latency.getToObserved().getMax());
+
+        // a press pending when the machine stops, to rewind or on a fault, is not timed
+        events.add(5, true);
+        latency.onEdge(events.poll());
+        latency.discardPending();
+        assertFalse(latency.isWaiting());
+        latency.onKeyRead(1 << 5);
+        latency.onPresented(System.nanoTime());
+        assertEquals(1, latency.getToObserved().getCount());
+        assertEquals(1, latency.getToPresented().getCount());
+    }
+
+    @DisplayName("CPU and emulator metrics are readable through an MBean server")
+    @Test
+    void shouldPublishMetricsThroughJmx() throws JMException {
+
+        // V0 = 5, adds 1 to V0, jumps back to the add
+        byte[] data = { 0x60, 0x05, 0x70, 0x01, 0x12, 0x02 };
+
+        final Machine machine = new Machine(data, random);
+        // counts per opcode pattern are only kept with a profiler
+        machine.getCPU().setProfiler(new Profiler(machine.getMemory()));
+        final CPUMetrics cpuMetrics = new CPUMetrics(machine.getCPU());
+        final EmulatorMetrics metrics = new EmulatorMetrics(0, 0);
+        cpuMetrics.publish(machine.runFrame(11));
+        metrics.onRender(2_000_000);
+        metrics.onFrame(20_000_000, machine.getCPU().getTicks(), true);
+        metrics.onFrame(40_000_000, machine.getCPU().getTicks(), false);
+
+        final MBeanServer server = MBeanServerFactory.newMBeanServer();
+        final ObjectName cpuName = new ObjectName("se.andolf:type=CPU");
+        final ObjectName emulatorName = new ObjectName("se.andolf:type=Emulator");
+        server.registerMBean(cpuMetrics, cpuName);
+        server.registerMBean(metrics, emulatorName);
+
+        assertEquals(11L, server.getAttribute(cpuName, "Instructions"));
+        final TabularData opcodeCounts = (TabularData) server.getAttribute(cpuName, "OpcodeCounts");
+        assertEquals(3, opcodeCounts.size());
+        assertEquals(5L, opcodeCounts.get(new Object[]{ "7XNN" }).get("value"));
+        assertEquals(OpcodeClass.ADD_REGISTER, OpcodeClass.of(0x8124));
+        assertEquals(OpcodeClass.UNKNOWN, OpcodeClass.of(0x8128));
+
+        assertEquals(2L, server.getAttribute(emulatorName, "Frames"));
+        assertEquals(0.5, server.getAttribute(emulatorName, "DrawFlagRatio"));
+        assertEquals(2.0, server.getAttribute(emulatorName, "MeanRenderMillis"));
+        // one tick in 20 ms is 20 - 16.67 ms behind, the frame without a tick did not run the machine
+        assertEquals(20 - 1000.0 / 60, (double) server.getAttribute(emulatorName, "TimerDriftMillis"), 0.01);
+    }
+
+    @DisplayName("Profiler counts per address and per opcode class, also after the opcode is written over")
+    @Test
+    void shouldProfileHotSpots() throws IOException {
+
+        // V0 = 5, adds 1 to V0, jumps back to the add
+        byte[] data = { 0x60, 0x05, 0x70, 0x01, 0x12, 0x02 };
+
+        final Machine machine = new Machine(data, random);
+        final Profiler profiler = new Profiler(machine.getMemory());
+        machine.getCPU().setProfiler(profiler);
+        machine.run(11);
+
+        assertEquals(11, profiler.getTotal());
+        assertEquals(5, profiler.getCount(0x202));
+        assertEquals(0x202, profiler.getHotSpots()[0]);
+        assertEquals(0x204, profiler.getHotSpots()[1]);
+        assertEquals(0x200, profiler.getHotSpots()[2]);
+
+        // the add becomes V1 = 7, earlier counts stay with the add
+        machine.getMemory().setByte(0x202, 0x61);
+        machine.getMemory().setByte(0x203, 0x07);
+        machine.run(4);
+
+        assertEquals(15, profiler.getTotal());
+        assertEquals(5, profiler.getCount(OpcodeClass.ADD_BYTE));
+        assertEquals(3, profiler.getCount(OpcodeClass.LD_BYTE));
+        assertEquals(7, profiler.getCount(OpcodeClass.JP));
+
+        final ByteArrayOutputStream png = new ByteArrayOutputStream();
+        profiler.writeHeatMap(png);
+        assertEquals("PNG", new String(png.toByteArray(), 1, 3, StandardCharsets.US_ASCII));
+    }
+
     private void emulate(byte[] data) {
         for (int i = 0; i < (data.length / 2); i++) {
             cpu.emulateCycle();